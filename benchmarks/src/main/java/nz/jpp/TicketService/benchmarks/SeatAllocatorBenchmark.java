@@ -0,0 +1,75 @@
+package nz.jpp.TicketService.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nz.jpp.TicketService.SeatAllocator;
+
+/*
+ * Measures SeatAllocator.getSeats followed by returning the seats, so the venue stays at
+ * the requested fill level for the whole run. The allocator is shared between benchmark 
+ * threads, run with -t N to measure contention and -prof gc for the allocation rate.
+ * Throughput gives ops/s, SampleTime gives the p99 latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeatAllocatorBenchmark {
+	
+	@Param({"inOrder", "frontAndCenter", "bitmap", "concurrent", "sectioned", "offHeap"})
+	public String allocator;
+	
+	//rows x columns
+	@Param({"10x24", "50x80", "200x500", "400x500"})
+	public String venue;
+	
+	@Param({"0.0", "0.5", "0.9", "0.99"})
+	public double fill;
+	
+	@Param({"1", "4", "10", "20"})
+	public int groupSize;
+	
+	private SeatAllocator seatAllocator;
+	
+	@Setup
+	public void setup() {
+		seatAllocator = Venues.newAllocator(allocator, venue);
+		Venues.fragment(seatAllocator, venue, fill, 42);
+	}
+	
+	@Benchmark
+	public void getAndReturnSeats(Blackhole bh) {
+		Set<Integer> seats = seatAllocator.getSeats(groupSize);
+		bh.consume(seats);
+		seatAllocator.returnSeats(seats);
+	}
+	
+	//at high fill most groups don't fit together and fall back to the split search
+	@Benchmark
+	public void getAndReturnSplitSeats(Blackhole bh) {
+		Set<Integer> seats = seatAllocator.getSplitSeats(groupSize);
+		bh.consume(seats);
+		seatAllocator.returnSeats(seats);
+	}
+	
+	@Benchmark
+	public int numSeatsAvailable() {
+		return seatAllocator.numSeatsAvailable();
+	}
+}
@@ -0,0 +1,115 @@
+package nz.jpp.TicketService.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import nz.jpp.TicketService.SeatAllocator;
+import nz.jpp.TicketService.SeatChangeFeed;
+import nz.jpp.TicketService.SeatHold;
+import nz.jpp.TicketService.SeatJournal;
+import nz.jpp.TicketService.TicketServiceImpl;
+
+/*
+ * Measures TicketServiceImpl.findAndHoldSeats and reserveSeats. Each reservation is cancelled
+ * straight away, which is part of the measured time, so the venue stays at the requested fill
+ * level and the service's reservation store doesn't grow over the run. The journal param compares the in-memory service
+ * with one journaling to a temp directory, either waiting for each fsync or not. The async variant
+ * goes through the service's batching writer, run it with -t to see batches form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TicketServiceBenchmark {
+	
+	private static final String EMAIL = "bench@jpp.nz";
+	
+	@Param({"inOrder", "frontAndCenter", "bitmap", "concurrent"})
+	public String allocator;
+	
+	@Param({"10x24", "200x500"})
+	public String venue;
+	
+	@Param({"0.0", "0.9"})
+	public double fill;
+	
+	@Param({"1", "4", "20"})
+	public int groupSize;
+	
+	@Param({"none", "async", "sync"})
+	public String journal;
+	
+	//publishing every seat change to a SeatChangeFeed nobody reads, to see what the hold path pays for it
+	@Param({"off", "on"})
+	public String changeFeed;
+	
+	private SeatAllocator seatAllocator;
+	private TicketServiceImpl ticketService;
+	private Path journalDirectory;
+	private SeatJournal seatJournal;
+	
+	@Setup
+	public void setup() throws IOException {
+		seatAllocator = Venues.newAllocator(allocator, venue);
+		Venues.fragment(seatAllocator, venue, fill, 42);
+		if("none".equals(journal)) {
+			ticketService = new TicketServiceImpl(seatAllocator, 3600);
+		} else {
+			journalDirectory = Files.createTempDirectory("seat-journal");
+			//the fragmented venue isn't journaled, a replay of it would come up short but the benchmark never replays
+			seatJournal = SeatJournal.open(journalDirectory, "sync".equals(journal), 1000);
+			ticketService = new TicketServiceImpl(seatAllocator, 3600, seatJournal);
+		}
+		if("on".equals(changeFeed)) ticketService.setChangeFeed(new SeatChangeFeed());
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		ticketService.close();
+		if(seatJournal != null) {
+			seatJournal.close();
+			try (Stream<Path> files = Files.walk(journalDirectory)) {
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+	
+	@Benchmark
+	public void holdAndReserve(Blackhole bh) {
+		SeatHold seatHold = ticketService.findAndHoldSeats(groupSize, EMAIL);
+		if(seatHold == null) return;
+		
+		String confirmation = ticketService.reserveSeats(seatHold.getSeatHoldId(), seatHold.getEmail());
+		bh.consume(ticketService.cancelReservation(confirmation));
+	}
+	
+	@Benchmark
+	public void holdAndReserveAsync(Blackhole bh) {
+		SeatHold seatHold = ticketService.findAndHoldSeatsAsync(groupSize, EMAIL).join();
+		if(seatHold == null) return;
+		
+		String confirmation = ticketService.reserveSeatsAsync(seatHold.getSeatHoldId(), seatHold.getEmail()).join();
+		bh.consume(ticketService.cancelReservation(confirmation));
+	}
+}
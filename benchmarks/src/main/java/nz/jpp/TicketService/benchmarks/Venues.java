@@ -0,0 +1,72 @@
+package nz.jpp.TicketService.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nz.jpp.TicketService.BitmapFrontAndCenterSeatAllocator;
+import nz.jpp.TicketService.ConcurrentFrontAndCenterSeatAllocator;
+import nz.jpp.TicketService.FrontAndCenterSeatAllocator;
+import nz.jpp.TicketService.InOrderSeatAllocator;
+import nz.jpp.TicketService.OffHeapSeatAllocator;
+import nz.jpp.TicketService.SeatAllocator;
+import nz.jpp.TicketService.SeatScoringModel;
+import nz.jpp.TicketService.SectionedSeatAllocator;
+
+/*
+ * Helpers shared by the benchmarks for building venues in a known state.
+ */
+final class Venues {
+	
+	//rows per section when the venue is sold by a SectionedSeatAllocator
+	static final int SECTION_ROWS = 25;
+	
+	private Venues() {}
+	
+	static int rows(String venue) {
+		return Integer.parseInt(venue.substring(0, venue.indexOf('x')));
+	}
+	
+	static int columns(String venue) {
+		return Integer.parseInt(venue.substring(venue.indexOf('x') + 1));
+	}
+	
+	static SeatAllocator newAllocator(String allocator, String venue) {
+		int rows = rows(venue);
+		int columns = columns(venue);
+		switch(allocator) {
+		case "inOrder": return new InOrderSeatAllocator(rows, columns);
+		case "frontAndCenter": return new FrontAndCenterSeatAllocator(rows, columns);
+		case "bitmap": return new BitmapFrontAndCenterSeatAllocator(rows, columns);
+		case "concurrent": return new ConcurrentFrontAndCenterSeatAllocator(rows, columns);
+		case "sectioned": return sectioned(rows, columns);
+		case "offHeap": return new OffHeapSeatAllocator(SeatScoringModel.frontAndCenter(rows, columns));
+		default: throw new IllegalArgumentException("Unknown allocator " + allocator);
+		}
+	}
+	
+	//the front-and-center venue cut into sections of SECTION_ROWS rows
+	static SeatAllocator sectioned(int rows, int columns) {
+		SeatScoringModel venue = SeatScoringModel.frontAndCenter(rows, columns);
+		List<SeatScoringModel> sections = new ArrayList<SeatScoringModel>();
+		for(int first = 1; first <= rows; first += SECTION_ROWS) sections.add(venue.rows(first, Math.min(rows, first + SECTION_ROWS - 1)));
+		return new SectionedSeatAllocator(sections);
+	}
+	
+	/*
+	 * Holds every seat in the venue and then hands back a random (1 - fill) share of them,
+	 * so the free seats left behind are scattered across rows rather than packed together.
+	 */
+	static void fragment(SeatAllocator allocator, String venue, double fill, long seed) {
+		if(fill <= 0) return;
+		int columns = columns(venue);
+		List<Integer> held = new ArrayList<Integer>();
+		for(int row = 0; row < rows(venue); row++) 
+			held.addAll(allocator.getSeats(columns));
+		
+		Collections.shuffle(held, new Random(seed));
+		int toReturn = (int) Math.round(held.size() * (1 - fill));
+		allocator.returnSeats(held.subList(0, toReturn));
+	}
+}
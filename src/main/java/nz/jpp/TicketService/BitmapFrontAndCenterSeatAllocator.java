@@ -0,0 +1,184 @@
+package nz.jpp.TicketService;
+
+import java.util.Collection;
+
+/*
+ * Places people the same way as FrontAndCenterSeatAllocator, but keeps each row as a long[]
+ * bitmap of free seats instead of a queue of linked Seat objects. Free runs are found a word 
+ * at a time and candidate windows are scored from prefix sums of the column scores, so a hold 
+ * doesn't copy or allocate anything per row. Seats are scored by a SeatScoringModel, front-and-center
+ * unless another model is given, and positions the model has no seat for are never free.
+ * 
+ * The search is bounded: every row keeps the length of its longest free run, and a row can never
+ * beat its best window of numSeats seats with nobody sitting in them. Rows are visited in falling
+ * bound order and the search stops as soon as no remaining row can beat the best block found.
+ */
+public class BitmapFrontAndCenterSeatAllocator implements SeatAllocator {
+	
+	private final int columns;
+	private final SeatScoringModel model;
+	private final WindowScores scores;
+	private final long[][] freeSeats;
+	private final int[] rowLongestRun;
+	private final SeatAvailability availability;
+	
+	public BitmapFrontAndCenterSeatAllocator(int rows, int columns) {
+		this(SeatScoringModel.frontAndCenter(rows, columns));
+	}
+	
+	public BitmapFrontAndCenterSeatAllocator(SeatScoringModel model) {
+		int rows = model.rows();
+		this.columns = model.columns();
+		this.model = model;
+		this.scores = model.windowScores();
+		this.freeSeats = new long[rows][];
+		this.rowLongestRun = new int[rows];
+		for(int row = 0; row < rows; row++) {
+			freeSeats[row] = model.seatRow(row);
+			rowLongestRun[row] = SeatBitmaps.longestRun(freeSeats[row], columns);
+		}
+		availability = new SeatAvailability(model);
+	}
+	
+	@Override
+	public SeatScoringModel getScoringModel() {
+		return model;
+	}
+	
+	@Override
+	public int numSeatsAvailable() {
+		return availability.available();
+	}
+	
+	@Override
+	public int numSeatsAvailable(int row) {
+		return availability.available(row);
+	}
+	
+	@Override
+	public synchronized SeatSet getSeats(int numSeats) {
+		long block = bestBlock(numSeats);
+		return block < 0 ? SeatSet.EMPTY : takeBlock(block, numSeats, 0);
+	}
+	
+	long bestBlock(int numSeats) {
+		//like FrontAndCenterSeatAllocator, a block has to score above zero to be handed out
+		return bestBlock(numSeats, 0);
+	}
+	
+	/*
+	 * The best free block of numSeats that scores above floor, packed as row << 32 | column from 0, or -1 if there 
+	 * is none. Nothing is taken
+	 */
+	synchronized long bestBlock(int numSeats, double floor) {
+		if(numSeats <= 0 || numSeats > columns) return -1;
+		
+		double bestScore = floor;
+		int bestRow = -1;
+		int bestColumn = -1;
+		
+		for(int row : scores.rowOrder(numSeats)) {
+			//rows are in falling bound order so nothing after this row can win either
+			if(scores.bound(row, numSeats) <= bestScore + WindowScores.SCORE_EPSILON) break;
+			if(rowLongestRun[row] < numSeats) continue;
+			
+			int column = scores.bestWindow(row, freeSeats[row], numSeats);
+			if(column < 0) continue;
+			
+			double score = scores.score(row, column, numSeats);
+			if(score > bestScore + WindowScores.SCORE_EPSILON) {
+				bestScore = score;
+				bestRow = row;
+				bestColumn = column;
+			}
+		}
+		
+		return bestRow < 0 ? -1 : (long) bestRow << 32 | bestColumn;
+	}
+	
+	/*
+	 * The best any block of numSeats could score, however the venue is filled
+	 */
+	double bound(int numSeats) {
+		return numSeats <= 0 || numSeats > columns ? Double.NEGATIVE_INFINITY : scores.boundFrom(0, numSeats);
+	}
+	
+	double blockScore(long block, int numSeats) {
+		return scores.score((int) (block >>> 32), (int) block, numSeats);
+	}
+	
+	/*
+	 * Takes a block found by bestBlock, numbering its seats in section. Returns an empty set if any of the seats
+	 * was taken since
+	 */
+	synchronized SeatSet takeBlock(long block, int numSeats, int section) {
+		int row = (int) (block >>> 32);
+		int column = (int) block;
+		long[] rowSeats = freeSeats[row];
+		if(SeatBitmaps.nextClearBit(rowSeats, column, column + numSeats) < column + numSeats) return SeatSet.EMPTY;
+		
+		SeatBitmaps.clearRange(rowSeats, column, column + numSeats);
+		rowLongestRun[row] = SeatBitmaps.longestRun(rowSeats, columns);
+		availability.held(row + 1, numSeats);
+		return SeatSet.range(SeatId.encode(section, row + 1, column + 1), numSeats);
+	}
+	
+	@Override
+	public synchronized SeatSet getSplitSeats(int numSeats, long maxSearchNanos) {
+		SeatSet seats = getSeats(numSeats);
+		if(!seats.isEmpty()) return seats;
+		
+		seats = SplitGroupSearch.search(scores, row -> freeSeats[row], numSeats, SplitGroupSearch.DEFAULT_MAX_BLOCKS, maxSearchNanos);
+		return takeSeats(seats) ? seats : SeatSet.EMPTY;
+	}
+	
+	@Override
+	public synchronized void returnSeat(Integer seatNum) {
+		int row = SeatId.row(seatNum) - 1;
+		int column = SeatId.seat(seatNum) - 1;
+		if(SeatBitmaps.get(freeSeats[row], column) || !model.isSeat(row + 1, column + 1)) return;
+		
+		long[] rowSeats = freeSeats[row];
+		SeatBitmaps.set(rowSeats, column);
+		//the returned seat can only grow the run it now belongs to
+		int runStart = SeatBitmaps.previousClearBit(rowSeats, column) + 1;
+		int runEnd = SeatBitmaps.nextClearBit(rowSeats, column, columns);
+		rowLongestRun[row] = Math.max(rowLongestRun[row], runEnd - runStart);
+		availability.returned(row + 1, 1);
+	}
+	
+	@Override
+	public synchronized void returnSeats(Collection<Integer> seats) {
+		int[] seatNums = SeatSet.sortedSeats(seats);
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]) - 1;
+			long[] rowSeats = freeSeats[row];
+			int returned = 0;
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) - 1 == row; i++) {
+				int column = SeatId.seat(seatNums[i]) - 1;
+				if(SeatBitmaps.get(rowSeats, column) || !model.isSeat(row + 1, column + 1)) continue;
+				SeatBitmaps.set(rowSeats, column);
+				returned++;
+			}
+			rowLongestRun[row] = SeatBitmaps.longestRun(rowSeats, columns);
+			availability.returned(row + 1, returned);
+		}
+	}
+	
+	@Override
+	public synchronized boolean takeSeats(Collection<Integer> seats) {
+		int[] seatNums = SeatSet.sortedSeats(seats);
+		for(int seatNum : seatNums) {
+			if(!SeatBitmaps.get(freeSeats[SeatId.row(seatNum) - 1], SeatId.seat(seatNum) - 1)) return false;
+		}
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]) - 1;
+			int taken = 0;
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) - 1 == row; i++, taken++)
+				SeatBitmaps.clear(freeSeats[row], SeatId.seat(seatNums[i]) - 1);
+			rowLongestRun[row] = SeatBitmaps.longestRun(freeSeats[row], columns);
+			availability.held(row + 1, taken);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,50 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The clocks behind TicketClock.coarse. There is one clock per resolution, and one daemon
+ * thread refreshes all of them, so asking for a coarse clock again never starts another thread.
+ */
+final class CoarseClock implements TicketClock {
+
+	private static final ConcurrentHashMap<Long,CoarseClock> clocks = new ConcurrentHashMap<Long,CoarseClock>();
+	//started by the first coarse clock
+	private static volatile ScheduledExecutorService ticker;
+
+	private volatile long now = SYSTEM.millis();
+
+	private CoarseClock() {
+	}
+
+	static CoarseClock forResolution(long resolutionMillis) {
+		return clocks.computeIfAbsent(resolutionMillis, resolution -> {
+			CoarseClock clock = new CoarseClock();
+			ticker().scheduleAtFixedRate(() -> clock.now = SYSTEM.millis(), resolution, resolution, TimeUnit.MILLISECONDS);
+			return clock;
+		});
+	}
+
+	private static ScheduledExecutorService ticker() {
+		ScheduledExecutorService current = ticker;
+		if(current != null) return current;
+		synchronized(CoarseClock.class) {
+			if(ticker == null) {
+				ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "ticket-clock");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			return ticker;
+		}
+	}
+
+	@Override
+	public long millis() {
+		return now;
+	}
+}
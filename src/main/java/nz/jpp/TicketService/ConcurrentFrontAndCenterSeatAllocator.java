@@ -0,0 +1,212 @@
+package nz.jpp.TicketService;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A front-and-center allocator for busy on-sales. Instead of one monitor for the whole venue, 
+ * every row has its own lock. The best block is searched for without any locking, from a copy
+ * of each row's bitmap, and then claimed under that row's lock only if it is still free. If 
+ * another thread took some of the seats in the meantime the search is simply run again. 
+ * Holds in different rows, and every search, run in parallel.
+ * 
+ * With no contention it places people exactly like BitmapFrontAndCenterSeatAllocator given the same
+ * SeatScoringModel.
+ */
+public class ConcurrentFrontAndCenterSeatAllocator implements SeatAllocator {
+	
+	private final int columns;
+	private final int wordsPerRow;
+	private final SeatScoringModel model;
+	private final WindowScores scores;
+	//row r uses words [r * wordsPerRow, (r + 1) * wordsPerRow), only written while holding rowLocks[r]
+	private final AtomicLongArray freeSeats;
+	private final AtomicIntegerArray rowLongestRun;
+	private final Object[] rowLocks;
+	private final SeatAvailability availability;
+	//each thread copies rows into its own scratch array while searching
+	private final ThreadLocal<long[]> rowScratch;
+	
+	public ConcurrentFrontAndCenterSeatAllocator(int rows, int columns) {
+		this(SeatScoringModel.frontAndCenter(rows, columns));
+	}
+	
+	public ConcurrentFrontAndCenterSeatAllocator(SeatScoringModel model) {
+		int rows = model.rows();
+		this.columns = model.columns();
+		this.wordsPerRow = SeatBitmaps.wordsFor(columns);
+		this.model = model;
+		this.scores = model.windowScores();
+		this.freeSeats = new AtomicLongArray(rows * wordsPerRow);
+		this.rowLongestRun = new AtomicIntegerArray(rows);
+		this.rowLocks = new Object[rows];
+		
+		for(int row = 0; row < rows; row++) {
+			long[] seats = model.seatRow(row);
+			writeRow(row, seats);
+			rowLongestRun.set(row, SeatBitmaps.longestRun(seats, columns));
+			rowLocks[row] = new Object();
+		}
+		availability = new SeatAvailability(model);
+		rowScratch = ThreadLocal.withInitial(() -> new long[wordsPerRow]);
+	}
+	
+	@Override
+	public SeatScoringModel getScoringModel() {
+		return model;
+	}
+	
+	@Override
+	public int numSeatsAvailable() {
+		return availability.available();
+	}
+	
+	@Override
+	public int numSeatsAvailable(int row) {
+		return availability.available(row);
+	}
+	
+	private long[] copyRow(int row, long[] scratch) {
+		for(int word = 0; word < wordsPerRow; word++) scratch[word] = freeSeats.get(row * wordsPerRow + word);
+		return scratch;
+	}
+	
+	private void writeRow(int row, long[] words) {
+		for(int word = 0; word < wordsPerRow; word++) freeSeats.set(row * wordsPerRow + word, words[word]);
+	}
+	
+	@Override
+	public SeatSet getSeats(int numSeats) {
+		if(numSeats <= 0 || numSeats > columns) return SeatSet.EMPTY;
+		
+		long[] scratch = rowScratch.get();
+		while(true) {
+			double bestScore = 0;
+			int bestRow = -1;
+			int bestColumn = -1;
+			
+			for(int row : scores.rowOrder(numSeats)) {
+				if(scores.bound(row, numSeats) <= bestScore + WindowScores.SCORE_EPSILON) break;
+				if(rowLongestRun.get(row) < numSeats) continue;
+				
+				int column = scores.bestWindow(row, copyRow(row, scratch), numSeats);
+				if(column < 0) continue;
+				
+				double score = scores.score(row, column, numSeats);
+				if(score > bestScore + WindowScores.SCORE_EPSILON) {
+					bestScore = score;
+					bestRow = row;
+					bestColumn = column;
+				}
+			}
+			
+			if(bestRow < 0) return SeatSet.EMPTY;
+			
+			if(claim(bestRow, bestColumn, numSeats, scratch)) {
+				availability.held(bestRow + 1, numSeats);
+				return SeatSet.range(SeatId.encode(bestRow + 1, bestColumn + 1), numSeats);
+			}
+			//someone else got to some of those seats first, search again
+		}
+	}
+	
+	@Override
+	public SeatSet getSplitSeats(int numSeats, long maxSearchNanos) {
+		//one budget for every pass, so losing races can't stretch the search past maxSearchNanos
+		long deadline = System.nanoTime() + maxSearchNanos;
+		while(true) {
+			SeatSet seats = getSeats(numSeats);
+			if(!seats.isEmpty()) return seats;
+			
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) return SeatSet.EMPTY;
+			
+			long[] scratch = rowScratch.get();
+			seats = SplitGroupSearch.search(scores, row -> copyRow(row, scratch), numSeats, SplitGroupSearch.DEFAULT_MAX_BLOCKS, remaining);
+			if(seats.isEmpty() || takeSeats(seats)) return seats;
+			//someone else got to some of those seats first, search again
+		}
+	}
+	
+	private boolean claim(int row, int column, int numSeats, long[] scratch) {
+		synchronized(rowLocks[row]) {
+			long[] words = copyRow(row, scratch);
+			if(!SeatBitmaps.allSet(words, column, column + numSeats)) return false;
+			
+			SeatBitmaps.clearRange(words, column, column + numSeats);
+			writeRow(row, words);
+			rowLongestRun.set(row, SeatBitmaps.longestRun(words, columns));
+			return true;
+		}
+	}
+	
+	@Override
+	public void returnSeat(Integer seatNum) {
+		int row = SeatId.row(seatNum) - 1;
+		int column = SeatId.seat(seatNum) - 1;
+		if(!model.isSeat(row + 1, column + 1)) return;
+		
+		synchronized(rowLocks[row]) {
+			long[] words = copyRow(row, rowScratch.get());
+			if(SeatBitmaps.get(words, column)) return;
+			
+			SeatBitmaps.set(words, column);
+			writeRow(row, words);
+			int runStart = SeatBitmaps.previousClearBit(words, column) + 1;
+			int runEnd = SeatBitmaps.nextClearBit(words, column, columns);
+			rowLongestRun.set(row, Math.max(rowLongestRun.get(row), runEnd - runStart));
+		}
+		availability.returned(row + 1, 1);
+	}
+	
+	@Override
+	public void returnSeats(Collection<Integer> seats) {
+		int[] seatNums = SeatSet.sortedSeats(seats);
+		long[] scratch = rowScratch.get();
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]) - 1;
+			int returned = 0;
+			synchronized(rowLocks[row]) {
+				long[] words = copyRow(row, scratch);
+				for(; i < seatNums.length && SeatId.row(seatNums[i]) - 1 == row; i++) {
+					int column = SeatId.seat(seatNums[i]) - 1;
+					if(SeatBitmaps.get(words, column) || !model.isSeat(row + 1, column + 1)) continue;
+					SeatBitmaps.set(words, column);
+					returned++;
+				}
+				writeRow(row, words);
+				rowLongestRun.set(row, SeatBitmaps.longestRun(words, columns));
+			}
+			availability.returned(row + 1, returned);
+		}
+	}
+	
+	@Override
+	public boolean takeSeats(Collection<Integer> seats) {
+		return takeSeats(SeatSet.sortedSeats(seats), 0);
+	}
+	
+	//locks the row of seatNums[from] and recurses into the next row, so every row involved is locked, in order, before anything is taken
+	private boolean takeSeats(int[] seatNums, int from) {
+		if(from == seatNums.length) return true;
+		
+		int row = SeatId.row(seatNums[from]) - 1;
+		int end = from;
+		while(end < seatNums.length && SeatId.row(seatNums[end]) - 1 == row) end++;
+		
+		synchronized(rowLocks[row]) {
+			long[] words = copyRow(row, new long[wordsPerRow]);
+			for(int i = from; i < end; i++) {
+				if(!SeatBitmaps.get(words, SeatId.seat(seatNums[i]) - 1)) return false;
+			}
+			if(!takeSeats(seatNums, end)) return false;
+			
+			for(int i = from; i < end; i++) SeatBitmaps.clear(words, SeatId.seat(seatNums[i]) - 1);
+			writeRow(row, words);
+			rowLongestRun.set(row, SeatBitmaps.longestRun(words, columns));
+		}
+		availability.held(row + 1, end - from);
+		return true;
+	}
+}
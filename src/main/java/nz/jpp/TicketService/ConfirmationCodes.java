@@ -0,0 +1,45 @@
+package nz.jpp.TicketService;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/*
+ * Random confirmation codes: 80 bits from a cryptographically strong generator, written as 16
+ * characters of Crockford's base32 so they read back over the phone. Guessing a live code is
+ * hopeless and two codes are as good as never the same, ReservationStore still checks.
+ * 
+ * Each thread has its own SHA1PRNG, seeded once from the platform's non-blocking generator 
+ * (/dev/urandom), so making codes neither blocks for entropy nor shares a lock between threads.
+ */
+final class ConfirmationCodes {
+	
+	static final int LENGTH = 16;
+	private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	
+	private static final SecureRandom SEEDS = new SecureRandom();
+	private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+		byte[] seed = new byte[32];
+		SEEDS.nextBytes(seed);
+		try {
+			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			//seeding before first use makes the seed its only source
+			random.setSeed(seed);
+			return random;
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java platform has SHA1PRNG", e);
+		}
+	});
+	
+	private ConfirmationCodes() {}
+	
+	static String next() {
+		SecureRandom random = RANDOM.get();
+		long high = random.nextLong();
+		int low = random.nextInt();
+		char[] code = new char[LENGTH];
+		//12 characters from 60 bits of high and 4 from 20 bits of low
+		for(int i = 0; i < 12; i++) code[i] = ALPHABET[(int) (high >>> (5 * i)) & 31];
+		for(int i = 0; i < 4; i++) code[12 + i] = ALPHABET[(low >>> (5 * i)) & 31];
+		return new String(code);
+	}
+}
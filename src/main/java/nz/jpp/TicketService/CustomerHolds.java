@@ -0,0 +1,180 @@
+package nz.jpp.TicketService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Every customer's outstanding holds, so they can be found without scanning every hold, and
+ * the quota each customer holds against. A customer's holds are counted from the moment they
+ * ask, before the allocator is searched, so a client retrying in a loop is turned away without
+ * costing any allocator work.
+ *
+ * A hold asked for with an idempotency key is remembered under that key while it is held. Asking
+ * again with the same key, e.g. a client retrying after a timeout, gets the same hold back
+ * instead of a second one. A retry that arrives while the first attempt is still looking for
+ * seats waits for it.
+ *
+ * Each customer's state is changed inside ConcurrentHashMap.compute, which locks that
+ * customer's entry and nobody else's. Customers with nothing held are dropped from the map.
+ *
+ * Until indexAll is called only holds with an idempotency key are kept, the rest skip the index
+ * entirely and cost nothing. indexAll adds the holds already made, and from then on every hold
+ * is counted, so a service that never needs quotas or getSeatHolds never pays for them. Holds
+ * without an email have no customer to count against and are never indexed.
+ */
+final class CustomerHolds {
+
+	static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private static final class Customer {
+		//counting the holds still being looked for
+		int holds;
+		int seats;
+		final ArrayList<SeatHold> held = new ArrayList<SeatHold>(2);
+		final HashMap<String,CompletableFuture<SeatHold>> keys = new HashMap<String,CompletableFuture<SeatHold>>(2);
+
+		boolean isEmpty() {
+			return holds == 0 && keys.isEmpty();
+		}
+	}
+
+	/*
+	 * What a customer asking for a hold should do: wait for an earlier attempt with the same key, look for seats
+	 * and then call held or failed, or nothing because they are over their quota
+	 */
+	static final class Attempt {
+		static final Attempt OVER_QUOTA = new Attempt(null, null);
+		//not indexed, held and failed do nothing
+		static final Attempt UNCOUNTED = new Attempt(null, null);
+
+		final CompletableFuture<SeatHold> earlier;
+		final CompletableFuture<SeatHold> mine;
+
+		private Attempt(CompletableFuture<SeatHold> earlier, CompletableFuture<SeatHold> mine) {
+			this.earlier = earlier;
+			this.mine = mine;
+		}
+	}
+
+	private final ConcurrentHashMap<String,Customer> customers = new ConcurrentHashMap<String,Customer>();
+	private volatile int maxHolds = UNLIMITED;
+	private volatile int maxSeats = UNLIMITED;
+	private volatile boolean indexingAll = false;
+
+	void setQuota(int maxHolds, int maxSeats) {
+		if(maxHolds < 1 || maxSeats < 1) throw new IllegalArgumentException("Quotas have to allow at least one hold of one seat");
+		this.maxHolds = maxHolds;
+		this.maxSeats = maxSeats;
+	}
+
+	/*
+	 * Starts a hold of numSeats for a customer. nowMillis decides whether a hold remembered under the key has expired
+	 */
+	Attempt begin(String email, int numSeats, String idempotencyKey, long nowMillis) {
+		if(email == null || (idempotencyKey == null && !indexingAll)) return Attempt.UNCOUNTED;
+		Attempt[] attempt = new Attempt[1];
+		customers.compute(email, (key, customer) -> {
+			if(customer == null) customer = new Customer();
+			if(idempotencyKey != null) {
+				CompletableFuture<SeatHold> earlier = customer.keys.get(idempotencyKey);
+				SeatHold earlierHold = earlier == null ? null : earlier.getNow(null);
+				if(earlier != null && (!earlier.isDone() || (earlierHold != null && earlierHold.isLive(nowMillis)))) {
+					attempt[0] = new Attempt(earlier, null);
+					return customer;
+				}
+			}
+			if(customer.holds >= maxHolds || customer.seats > maxSeats - numSeats) {
+				attempt[0] = Attempt.OVER_QUOTA;
+				return customer.isEmpty() ? null : customer;
+			}
+			customer.holds++;
+			customer.seats += numSeats;
+			CompletableFuture<SeatHold> mine = new CompletableFuture<SeatHold>();
+			if(idempotencyKey != null) customer.keys.put(idempotencyKey, mine);
+			attempt[0] = new Attempt(null, mine);
+			return customer;
+		});
+		return attempt[0];
+	}
+
+	void held(Attempt attempt, SeatHold seatHold, int numSeats) {
+		if(attempt == Attempt.UNCOUNTED) return;
+		customers.compute(seatHold.getEmail(), (key, customer) -> {
+			//held may give a split party a different number of seats than it asked for
+			customer.seats += seatHold.getSeats().size() - numSeats;
+			customer.held.add(seatHold);
+			return customer;
+		});
+		attempt.mine.complete(seatHold);
+	}
+
+	void failed(Attempt attempt, String email, int numSeats) {
+		if(attempt == Attempt.UNCOUNTED) return;
+		customers.compute(email, (key, customer) -> {
+			customer.holds--;
+			customer.seats -= numSeats;
+			customer.keys.values().remove(attempt.mine);
+			return customer.isEmpty() ? null : customer;
+		});
+		attempt.mine.complete(null);
+	}
+
+	boolean isIndexingAll() {
+		return indexingAll;
+	}
+
+	/*
+	 * Starts counting every hold, beginning with these, which are counted against their customer's quota without
+	 * checking it. No hold can begin, finish or be removed until this returns
+	 */
+	void indexAll(Collection<SeatHold> seatHolds) {
+		if(indexingAll) return;
+		for(SeatHold seatHold : seatHolds) {
+			if(seatHold.getEmail() == null) continue;
+			customers.compute(seatHold.getEmail(), (key, customer) -> {
+				if(customer == null) customer = new Customer();
+				//holds with a key are already here
+				if(customer.held.contains(seatHold)) return customer;
+				customer.holds++;
+				customer.seats += seatHold.getSeats().size();
+				customer.held.add(seatHold);
+				return customer;
+			});
+		}
+		indexingAll = true;
+	}
+
+	/*
+	 * The hold was reserved or expired
+	 */
+	void remove(SeatHold seatHold) {
+		if(seatHold.getEmail() == null) return;
+		customers.computeIfPresent(seatHold.getEmail(), (key, customer) -> {
+			if(!customer.held.remove(seatHold)) return customer;
+			customer.holds--;
+			customer.seats -= seatHold.getSeats().size();
+			for(Map.Entry<String,CompletableFuture<SeatHold>> entry : customer.keys.entrySet()) {
+				if(entry.getValue().getNow(null) == seatHold) {
+					customer.keys.remove(entry.getKey());
+					break;
+				}
+			}
+			return customer.isEmpty() ? null : customer;
+		});
+	}
+
+	List<SeatHold> holds(String email) {
+		ArrayList<SeatHold> holds = new ArrayList<SeatHold>();
+		if(email == null) return holds;
+		customers.computeIfPresent(email, (key, customer) -> {
+			holds.addAll(customer.held);
+			return customer;
+		});
+		return holds;
+	}
+}
@@ -1,11 +1,11 @@
 package nz.jpp.TicketService;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.PriorityQueue;
-import java.util.Set;
 
 class Seat {
 	private Seat leftNeighbor = null;
@@ -70,36 +70,74 @@ class SeatComparator implements Comparator<Seat>
 /*
  * The goal of this Allocator is to try and get people front and center. 
  * As the center front fills, it will try and make the tradeoff between being
- * in the the center vs close to the front.
+ * in the the center vs close to the front. Seats are scored by a SeatScoringModel, so a
+ * venue can also be given its own scores.
  */
 public class FrontAndCenterSeatAllocator implements SeatAllocator {
 	
-	HashMap<Integer,Seat> unavailableSeats = new HashMap<Integer,Seat>();
+	//every seat in the venue, indexed by SeatId.index
+	private final Seat[] seats;
+	private final int columns;
 	ArrayList<PriorityQueue<Seat>> rowQueues = new ArrayList<PriorityQueue<Seat>>();
+	private final SeatAvailability availability;
+	//bounds the search, and scores split parties
+	private final WindowScores windowScores;
+	
+	//most holds are for small groups, caches[n] remembers the best blocks of n seats between holds
+	static final int MAX_CACHED_GROUP = 6;
+	static final int CACHED_BLOCKS = 8;
+	private final BestBlockCache[] caches = new BestBlockCache[MAX_CACHED_GROUP + 1];
+	private final boolean cacheBestBlocks;
 	
-	private double columnToRank(int column, int columns) {
-		return - Math.pow(column / (columns/2.0 + 0.5) - 1, 2) + 0.8; 
-	}
 	public FrontAndCenterSeatAllocator(int rows, int columns) {
+		this(SeatScoringModel.frontAndCenter(rows, columns), true);
+	}
+	
+	public FrontAndCenterSeatAllocator(SeatScoringModel model) {
+		this(model, true);
+	}
+	
+	//without the cache every hold searches the venue, the tests compare the two
+	FrontAndCenterSeatAllocator(SeatScoringModel model, boolean cacheBestBlocks) {
+		int rows = model.rows();
+		this.cacheBestBlocks = cacheBestBlocks;
+		this.columns = model.columns();
+		seats = new Seat[rows * columns];
+		availability = new SeatAvailability(model);
+		windowScores = model.windowScores();
 		Seat leftNeighbor = null;
 		for(int row = 1; row <= rows; row++) {
 			PriorityQueue<Seat> rowQueue = new PriorityQueue<Seat>(columns, new SeatComparator());
 			for(int column = 1; column <= columns; column++) {
-				double rank = (rows - row) * 0.2 + columnToRank(column, columns);
-				Seat newSeat = new Seat(row * 100 + column, rank, leftNeighbor);
+				Seat newSeat = new Seat(SeatId.encode(row, column), model.score(row, column), leftNeighbor);
+				seats[SeatId.index(newSeat.getSeatNum(), columns)] = newSeat;
 //				System.out.println("adding seat " + newSeat.getSeatNum() + " with score " + newSeat.getScore());
-				rowQueue.add(newSeat);
+				//where the model has no seat the position stays taken, so blocks can't run across it
+				if(model.isSeat(row, column)) rowQueue.add(newSeat);
+				else newSeat.setAvailable(false);
 				leftNeighbor = newSeat;
 			}
 			rowQueues.add(rowQueue);
 			leftNeighbor = null;
 		}
+		
+		for(int numSeats = 1; numSeats <= MAX_CACHED_GROUP; numSeats++) caches[numSeats] = new BestBlockCache(numSeats);
 	}
 
 	
 	@Override
-	public synchronized int numSeatsAvailable() {
-		return rowQueues.stream().mapToInt(rowQueue -> rowQueue.size()).sum();
+	public SeatScoringModel getScoringModel() {
+		return windowScores.model();
+	}
+	
+	@Override
+	public int numSeatsAvailable() {
+		return availability.available();
+	}
+	
+	@Override
+	public int numSeatsAvailable(int row) {
+		return availability.available(row);
 	}
 	
 	private HashSet<Seat> getBestAvailableNeighbor(Seat left, Seat right, HashSet<Seat> visited, int wantSize) {
@@ -150,98 +188,269 @@ public class FrontAndCenterSeatAllocator implements SeatAllocator {
 		}
 	}
 
+	/*
+	 * The best numSeats seats together in one row, or null if the row doesn't have them
+	 */
+	private HashSet<Seat> bestInRow(int rowNum, int numSeats) {
+		PriorityQueue<Seat> row = new PriorityQueue<Seat>(rowQueues.get(rowNum));
+		if(row.isEmpty()) return null;
+
+
+		HashSet<Seat> rowBestSeats = new HashSet<Seat>();
+		do  {
+			rowBestSeats.clear();
+//			dumpPriorityQueue(row, "row " + rowNum + " seats starting: ");
+//			dumpHashSet(rowBestSeats, "best seats length: " + rowBestSeats.size() + " start: ");
+			
+			
+			Seat start = row.remove();
+			rowBestSeats.add(start);
+			
+			Seat left = start.getLeftNeighbor();
+			if(left != null && !left.isAvailable()) left = null;
+			Seat right = start.getRightNeighbor();
+			if(right != null && !right.isAvailable()) right = null;
+			
+			if(numSeats == 1 || (left == null && right == null)) {}
+			else if(left != null && right == null) {
+				rowBestSeats.add(left);
+				getBestAvailableNeighbor(left, start, rowBestSeats, numSeats);
+			}
+			else if(left == null && right != null) {
+				rowBestSeats.add(right);
+				getBestAvailableNeighbor(start, right, rowBestSeats, numSeats);
+			}
+			else if (left.getScore() >= right.getScore()){
+				rowBestSeats.add(left);
+				getBestAvailableNeighbor(left, start, rowBestSeats, numSeats);			
+			} else {
+				rowBestSeats.add(right);
+				getBestAvailableNeighbor(start, right, rowBestSeats, numSeats);			
+			}
+			
+			//always remove rowBestSeats from the row so we don't try them again
+			row.removeAll(rowBestSeats);
+			//dumpPriorityQueue(row, "row " + rowNum + " seats remaining: ");
+			//dumpHashSet(rowBestSeats, "best seats found: ");
+		} while(rowBestSeats.size() != numSeats && !row.isEmpty());
+		
+		return rowBestSeats.size() == numSeats ? rowBestSeats : null;
+	}
+	
+	private static double score(HashSet<Seat> seats) {
+		return seats.stream().mapToDouble(seat -> seat.getScore()).sum();
+	}
+	
+	//the highest bound on the score of numSeats seats in rowNum or any row behind it
+	private double bound(int rowNum, int numSeats) {
+		return windowScores.boundFrom(rowNum, numSeats);
+	}
+
 	@Override
-	public synchronized Set<Integer> getSeats(int numSeats) {
-		if(numSeats == 0) return new HashSet<Integer>();
+	public synchronized SeatSet getSeats(int numSeats) {
+		if(numSeats == 0) return SeatSet.EMPTY;
+		
+		if(cacheBestBlocks && numSeats > 0 && numSeats <= MAX_CACHED_GROUP && numSeats <= columns) {
+			BestBlockCache cache = caches[numSeats];
+			HashSet<Seat> cached = cache.best();
+			if(cached != null) return take(cached);
+			if(cache.isEmpty()) return SeatSet.EMPTY;
+		}
+		
 		double bestScore = 0;
-		int bestSeatRowNum = -1;
-		HashSet<Seat> bestSeats = new HashSet<Seat>();
+		HashSet<Seat> bestSeats = null;
 				
 //		dumpRowQueues();
 		
 		for (int rowNum = 0; rowNum < rowQueues.size(); rowNum++) {
-			PriorityQueue<Seat> row = new PriorityQueue<Seat>(rowQueues.get(rowNum));
-			if(row.isEmpty()) continue;
-
-
-			HashSet<Seat> rowBestSeats = new HashSet<Seat>();
-			do  {
-				rowBestSeats.clear();
-//				dumpPriorityQueue(row, "row " + rowNum + " seats starting: ");
-//				dumpHashSet(rowBestSeats, "best seats length: " + rowBestSeats.size() + " start: ");
-				
-				
-				Seat start = row.remove();
-				rowBestSeats.add(start);
-				
-				Seat left = start.getLeftNeighbor();
-				if(left != null && !left.isAvailable()) left = null;
-				Seat right = start.getRightNeighbor();
-				if(right != null && !right.isAvailable()) right = null;
-				
-				if(numSeats == 1 || (left == null && right == null)) {}
-				else if(left != null && right == null) {
-					rowBestSeats.add(left);
-					getBestAvailableNeighbor(left, start, rowBestSeats, numSeats);
-				}
-				else if(left == null && right != null) {
-					rowBestSeats.add(right);
-					getBestAvailableNeighbor(start, right, rowBestSeats, numSeats);
-				}
-				else if (left.getScore() >= right.getScore()){
-					rowBestSeats.add(left);
-					getBestAvailableNeighbor(left, start, rowBestSeats, numSeats);			
-				} else {
-					rowBestSeats.add(right);
-					getBestAvailableNeighbor(start, right, rowBestSeats, numSeats);			
-				}
-				
-				//always remove rowBestSeats from the row so we don't try them again
-				row.removeAll(rowBestSeats);
-				//dumpPriorityQueue(row, "row " + rowNum + " seats remaining: ");
-				//dumpHashSet(rowBestSeats, "best seats found: ");
-			} while(rowBestSeats.size() != numSeats && !row.isEmpty());
+			//stop once neither this row nor any behind it can beat the best seats found, even if 
+			//their best seats were free (with a little slack for rounding)
+			if(numSeats > 0 && numSeats <= columns && bound(rowNum, numSeats) + 1e-9 < bestScore) break;
 			
-			if(rowBestSeats.size() == numSeats) {
+			HashSet<Seat> rowBestSeats = bestInRow(rowNum, numSeats);
+			if(rowBestSeats != null) {
 				//yay! we found the best set in this row
-				double rowScore = rowBestSeats.stream().mapToDouble(seat -> seat.getScore()).sum();
+				double rowScore = score(rowBestSeats);
 				if(rowScore > bestScore) {
 					//Yay! these are the best seats so far
-					bestSeats.clear();
-					bestSeats.addAll(rowBestSeats);
+					bestSeats = rowBestSeats;
 					bestScore = rowScore;
-					bestSeatRowNum = rowNum;
 				}
-				//we could probably 	optimize this by not searching further rows when they can't
-				//possibly beat the current best found seats. Maybe do that later...
-
 			}
 			
 		}
 		
-		HashMap<Integer,Seat> seatsToReturn = new HashMap<Integer,Seat>();
-		bestSeats.forEach(seat -> {
-			seatsToReturn.put(seat.getSeatNum(), seat);
-			seat.setAvailable(false);
-		});
+//		dumpRowQueues();
 		
-		unavailableSeats.putAll(seatsToReturn);
-		if(bestSeatRowNum >= 0) {
-			rowQueues.get(bestSeatRowNum).removeAll(bestSeats);
+		return bestSeats == null ? SeatSet.EMPTY : take(bestSeats);
+	}
+	
+	private SeatSet take(HashSet<Seat> bestSeats) {
+		int row = SeatId.row(bestSeats.iterator().next().getSeatNum());
+		bestSeats.forEach(seat -> seat.setAvailable(false));
+		rowQueues.get(row - 1).removeAll(bestSeats);
+		availability.held(row, bestSeats.size());
+		rowChanged(row - 1);
+		return SeatSet.of(bestSeats.stream().mapToInt(seat -> seat.getSeatNum()).toArray());
+	}
+	
+	private void rowChanged(int rowNum) {
+		for(int numSeats = 1; numSeats <= MAX_CACHED_GROUP; numSeats++) caches[numSeats].rowChanged(rowNum);
+	}
+	
+	/*
+	 * The best blocks of one group size, so a hold doesn't have to search the venue again. It keeps the best 
+	 * block of each of the top rows, and every row not in it can score at most threshold. A hold or return 
+	 * only marks its row dirty; dirty rows are searched again the next time this group size is asked for, 
+	 * and the best cached block is handed out as long as it beats threshold.
+	 */
+	private class BestBlockCache {
+		private final int numSeats;
+		//best first, ties go to the front row like the full search
+		private final ArrayList<HashSet<Seat>> blocks = new ArrayList<HashSet<Seat>>();
+		private final ArrayList<Double> scores = new ArrayList<Double>();
+		private double threshold;
+		private final BitSet dirtyRows = new BitSet();
+		private boolean built = false;
+		
+		BestBlockCache(int numSeats) {
+			this.numSeats = numSeats;
 		}
 		
-//		dumpRowQueues();
+		void rowChanged(int rowNum) {
+			if(built) dirtyRows.set(rowNum);
+		}
+		
+		HashSet<Seat> best() {
+			if(!built) build();
+			for(int rowNum = dirtyRows.nextSetBit(0); rowNum >= 0; rowNum = dirtyRows.nextSetBit(rowNum + 1)) {
+				remove(rowNum);
+				HashSet<Seat> rowBestSeats = bestInRow(rowNum, numSeats);
+				if(rowBestSeats != null) add(rowBestSeats, score(rowBestSeats));
+			}
+			dirtyRows.clear();
+			
+			if(!blocks.isEmpty() && scores.get(0) > threshold + 1e-9) {
+				HashSet<Seat> block = blocks.get(0);
+				//every change to a row marks it dirty, so this only fails if something went badly wrong
+				if(block.stream().allMatch(seat -> seat.isAvailable())) return block;
+			}
+			//the cache ran dry or the best block ties with a row it doesn't hold, start again next time. 
+			//Unless no row has a block at all, then there's nothing to find until a row changes
+			if(!isEmpty()) built = false;
+			return null;
+		}
+		
+		//true when no row has numSeats seats together that score above zero
+		boolean isEmpty() {
+			return built && blocks.isEmpty() && threshold == 0;
+		}
+		
+		private void build() {
+			blocks.clear();
+			scores.clear();
+			dirtyRows.clear();
+			//like getSeats, a block has to score above zero to be handed out
+			threshold = 0;
+			for (int rowNum = 0; rowNum < rowQueues.size(); rowNum++) {
+				if(blocks.size() == CACHED_BLOCKS && bound(rowNum, numSeats) < scores.get(blocks.size() - 1)) {
+					threshold = Math.max(threshold, bound(rowNum, numSeats));
+					break;
+				}
+				HashSet<Seat> rowBestSeats = bestInRow(rowNum, numSeats);
+				if(rowBestSeats != null) add(rowBestSeats, score(rowBestSeats));
+			}
+			built = true;
+		}
 		
-		return new HashSet<Integer>(seatsToReturn.keySet());
+		private void remove(int rowNum) {
+			for(int i = 0; i < blocks.size(); i++) {
+				if(SeatId.row(blocks.get(i).iterator().next().getSeatNum()) - 1 == rowNum) {
+					blocks.remove(i);
+					scores.remove(i);
+					return;
+				}
+			}
+		}
+		
+		private void add(HashSet<Seat> block, double score) {
+			if(score <= threshold) return;
+			int row = SeatId.row(block.iterator().next().getSeatNum());
+			int i = 0;
+			while(i < blocks.size() && (scores.get(i) > score || 
+					(scores.get(i) == score && SeatId.row(blocks.get(i).iterator().next().getSeatNum()) < row))) i++;
+			blocks.add(i, block);
+			scores.add(i, score);
+			if(blocks.size() > CACHED_BLOCKS) {
+				blocks.remove(CACHED_BLOCKS);
+				threshold = Math.max(threshold, scores.remove(CACHED_BLOCKS));
+			}
+		}
 	}
 
+	@Override
+	public synchronized SeatSet getSplitSeats(int numSeats, long maxSearchNanos) {
+		SeatSet split = getSeats(numSeats);
+		if(!split.isEmpty()) return split;
+		
+		int rows = rowQueues.size();
+		long[][] freeSeats = new long[rows][SeatBitmaps.wordsFor(columns)];
+		for(Seat seat : seats) {
+			if(seat.isAvailable()) SeatBitmaps.set(freeSeats[SeatId.row(seat.getSeatNum()) - 1], SeatId.seat(seat.getSeatNum()) - 1);
+		}
+		split = SplitGroupSearch.search(windowScores, row -> freeSeats[row], numSeats, SplitGroupSearch.DEFAULT_MAX_BLOCKS, maxSearchNanos);
+		return takeSeats(split) ? split : SeatSet.EMPTY;
+	}
+	
 	@Override
 	public synchronized void returnSeat(Integer seatNum) {
-		Seat seat = unavailableSeats.get(seatNum);
+		Seat seat = seats[SeatId.index(seatNum, columns)];
+		if(seat.isAvailable() || Double.isNaN(seat.getScore())) return;
 		seat.setAvailable(true);
-		rowQueues.get(seatNum / 100 - 1).add(seat);		
+		rowQueues.get(SeatId.row(seatNum) - 1).add(seat);
+		availability.returned(SeatId.row(seatNum), 1);
+		rowChanged(SeatId.row(seatNum) - 1);
 	}
 	
-	public void noteDoneForMocking() {}
+	@Override
+	public synchronized void returnSeats(Collection<Integer> seatsToReturn) {
+		int[] seatNums = SeatSet.sortedSeats(seatsToReturn);
+		ArrayList<Seat> rowSeats = new ArrayList<Seat>();
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]);
+			rowSeats.clear();
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) == row; i++) {
+				Seat seat = seats[SeatId.index(seatNums[i], columns)];
+				if(seat.isAvailable() || Double.isNaN(seat.getScore())) continue;
+				seat.setAvailable(true);
+				rowSeats.add(seat);
+			}
+			rowQueues.get(row - 1).addAll(rowSeats);
+			availability.returned(row, rowSeats.size());
+			rowChanged(row - 1);
+		}
+	}
+	
+	@Override
+	public synchronized boolean takeSeats(Collection<Integer> seatsToTake) {
+		int[] seatNums = SeatSet.sortedSeats(seatsToTake);
+		for(int seatNum : seatNums) {
+			if(!seats[SeatId.index(seatNum, columns)].isAvailable()) return false;
+		}
+		ArrayList<Seat> rowSeats = new ArrayList<Seat>();
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]);
+			rowSeats.clear();
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) == row; i++) {
+				Seat seat = seats[SeatId.index(seatNums[i], columns)];
+				seat.setAvailable(false);
+				rowSeats.add(seat);
+			}
+			rowQueues.get(row - 1).removeAll(rowSeats);
+			availability.held(row, rowSeats.size());
+			rowChanged(row - 1);
+		}
+		return true;
+	}
 
 }
@@ -0,0 +1,222 @@
+package nz.jpp.TicketService;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+ * A hashed timing wheel for expiring seat holds. Time is cut into ticks of a configurable
+ * length and every task lands in the bucket of the tick it is due in, with a count of how many
+ * more turns of the wheel it has to wait. Each tick only looks at one bucket, so scheduling and 
+ * expiring a hold are O(1) no matter how many holds are outstanding, and a task runs within 
+ * one tick after its deadline.
+ * 
+ * Tasks are run on the wheel's own daemon thread and should be short, unless the wheel is given
+ * an executor to hand them to. One wheel can be shared by any number of TicketServiceImpls.
+ * 
+ * The wheel reads the time from a TicketClock, which the services using it share. A manual wheel
+ * has no thread and only moves when advance is called, to follow a VirtualClock.
+ *
+ * A task that throws doesn't stop the wheel. It is counted in failedTasks and handed to the
+ * failure handler, if one is set.
+ */
+public class HoldExpiryWheel implements AutoCloseable {
+	
+	public static final long DEFAULT_TICK_MILLIS = 100;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+	//how long close waits for a task that is already running
+	static final long CLOSE_TIMEOUT_MILLIS = 5000;
+	
+	private static class Entry {
+		final Runnable task;
+		final long deadlineTick;
+		long remainingRounds;
+		
+		Entry(Runnable task, long deadlineTick) {
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+	
+	private final TicketClock clock;
+	private final long tickMillis;
+	private final long startMillis;
+	private final int mask;
+	//buckets are only touched by the wheel thread, new entries are handed over through pending
+	private final ArrayDeque<Entry>[] buckets;
+	private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+	//null for a manual wheel
+	private final ScheduledExecutorService executor;
+	//runs the due tasks, null to run them on the wheel thread
+	private final Executor workers;
+	private long currentTick = 0;
+	private final LongAdder failedTasks = new LongAdder();
+	private volatile Consumer<? super RuntimeException> failureHandler;
+	
+	public HoldExpiryWheel() {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+	
+	public HoldExpiryWheel(long tickMillis, int wheelSize) {
+		this(tickMillis, wheelSize, null);
+	}
+	
+	/**
+	 * @param tickMillis
+	 *            the resolution of the wheel, tasks run at most this long after they are due
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two
+	 * @param workers
+	 *            where due tasks are run, or null to run them on the wheel's own thread
+	 */
+	public HoldExpiryWheel(long tickMillis, int wheelSize, Executor workers) {
+		this(TicketClock.SYSTEM, tickMillis, wheelSize, workers, true);
+	}
+	
+	public HoldExpiryWheel(TicketClock clock, long tickMillis, int wheelSize, Executor workers) {
+		this(clock, tickMillis, wheelSize, workers, true);
+	}
+	
+	/**
+	 * A wheel without a thread of its own. Due tasks run inside advance, on the caller's thread.
+	 */
+	public static HoldExpiryWheel manual(TicketClock clock, long tickMillis, int wheelSize) {
+		return new HoldExpiryWheel(clock, tickMillis, wheelSize, null, false);
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private HoldExpiryWheel(TicketClock clock, long tickMillis, int wheelSize, Executor workers, boolean ownThread) {
+		if(tickMillis <= 0 || wheelSize <= 0) throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+		
+		int size = Integer.highestOneBit(wheelSize - 1) << 1;
+		if(wheelSize == 1) size = 1;
+		this.mask = size - 1;
+		this.buckets = new ArrayDeque[size];
+		for(int i = 0; i < size; i++) buckets[i] = new ArrayDeque<Entry>();
+		
+		this.workers = workers;
+		this.clock = clock;
+		this.tickMillis = tickMillis;
+		this.startMillis = clock.millis();
+		if(!ownThread) {
+			this.executor = null;
+			return;
+		}
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "hold-expiry-wheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Run task once delayMillis have passed
+	 */
+	public void schedule(Runnable task, long delayMillis) {
+		long deadline = clock.millis() - startMillis + Math.max(0, delayMillis);
+		//round up so a task never runs before its deadline
+		pending.add(new Entry(task, (deadline + tickMillis - 1) / tickMillis));
+	}
+	
+	public TicketClock clock() {
+		return clock;
+	}
+	
+	/**
+	 * @param failureHandler
+	 *            called with whatever a task throws, on the thread that ran it, or null to only count failures
+	 */
+	public void setFailureHandler(Consumer<? super RuntimeException> failureHandler) {
+		this.failureHandler = failureHandler;
+	}
+	
+	/**
+	 * @return the number of tasks that have thrown
+	 */
+	public long failedTasks() {
+		return failedTasks.sum();
+	}
+	
+	/**
+	 * Runs every task that is due by the clock, catching up on any ticks that were missed. The wheel's thread calls
+	 * this every tick, a manual wheel needs it called after its clock moves, from one thread at a time.
+	 */
+	public void advance() {
+		long targetTick = (clock.millis() - startMillis) / tickMillis;
+		while(currentTick < targetTick) {
+			currentTick++;
+			transferPending();
+			expireBucket(buckets[(int) (currentTick & mask)]);
+		}
+	}
+	
+	private void transferPending() {
+		Entry entry;
+		while((entry = pending.poll()) != null) {
+			long tick = Math.max(entry.deadlineTick, currentTick);
+			entry.remainingRounds = (tick - currentTick) / buckets.length;
+			buckets[(int) (tick & mask)].add(entry);
+		}
+	}
+	
+	private void expireBucket(ArrayDeque<Entry> bucket) {
+		Iterator<Entry> entries = bucket.iterator();
+		while(entries.hasNext()) {
+			Entry entry = entries.next();
+			if(entry.remainingRounds > 0) {
+				entry.remainingRounds--;
+				continue;
+			}
+			entries.remove();
+			if(workers == null) {
+				run(entry.task);
+				continue;
+			}
+			try {
+				workers.execute(() -> run(entry.task));
+			} catch(RejectedExecutionException e) {
+				//e.g. the pool has been shut down. Run it here, a hold that never expires would keep its seats forever
+				run(entry.task);
+			}
+		}
+	}
+	
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch(RuntimeException e) {
+			//one bad task mustn't stop the wheel
+			failedTasks.increment();
+			Consumer<? super RuntimeException> handler = failureHandler;
+			if(handler == null) return;
+			try {
+				handler.accept(e);
+			} catch(RuntimeException ignored) {
+				//nor can a bad handler
+			}
+		}
+	}
+	
+	/**
+	 * Stops the wheel. Tasks that haven't run yet are dropped, one that is running is waited for, for up to
+	 * CLOSE_TIMEOUT_MILLIS. It isn't interrupted, so a snapshot being written on the wheel thread isn't cut off.
+	 */
+	@Override
+	public void close() {
+		if(executor == null) return;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,10 +1,9 @@
 package nz.jpp.TicketService;
 
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -12,6 +11,8 @@ import java.util.stream.IntStream;
 public class InOrderSeatAllocator implements SeatAllocator {
 	
 	private final TreeSet<Integer> seats; 
+	private final SeatAvailability availability;
+	private final SeatScoringModel model;
 	
 	
 	/*
@@ -19,21 +20,41 @@ public class InOrderSeatAllocator implements SeatAllocator {
 	 * left as possible (fill out the first row from left-to-right and then row two, etc). 
 	*/
 	public InOrderSeatAllocator(int rows, int columns) {
-		List<Integer> seatList = IntStream.rangeClosed(1, rows).flatMap(row -> 
-			IntStream.rangeClosed(1, columns).map(column -> row * 100 + column)
+		this(SeatScoringModel.frontAndCenter(rows, columns));
+	}
+	
+	/*
+	 * Still seats people in order, the model only says where the seats are and scores split parties
+	 */
+	public InOrderSeatAllocator(SeatScoringModel model) {
+		List<Integer> seatList = IntStream.rangeClosed(1, model.rows()).flatMap(row -> 
+			IntStream.rangeClosed(1, model.columns()).filter(column -> model.isSeat(row, column))
+				.map(column -> SeatId.encode(row, column))
 		).boxed().collect(Collectors.toList());
 		
 		seats = new TreeSet<Integer>(seatList);
+		availability = new SeatAvailability(model);
+		this.model = model;
 	}
 
 	@Override
-	public synchronized int numSeatsAvailable() {
-		return seats.size();
+	public SeatScoringModel getScoringModel() {
+		return model;
+	}
+	
+	@Override
+	public int numSeatsAvailable() {
+		return availability.available();
+	}
+	
+	@Override
+	public int numSeatsAvailable(int row) {
+		return availability.available(row);
 	}
 
 	@Override
-	public synchronized Set<Integer> getSeats(int numSeats) {
-		if (numSeats == 0) return new HashSet<Integer>();
+	public synchronized SeatSet getSeats(int numSeats) {
+		if (numSeats == 0) return SeatSet.EMPTY;
 				
 		Iterator<Integer> seatIter = seats.iterator();
 		LinkedList<Integer> seatCandidates = new LinkedList<Integer>();
@@ -49,16 +70,59 @@ public class InOrderSeatAllocator implements SeatAllocator {
 		//the candidates are only valid if we have enough to fulfill the request
 		if(seatCandidates.size() == numSeats) {
 			seats.removeAll(seatCandidates);
+			availability.held(SeatId.row(seatCandidates.peek()), numSeats);
 		}
 		else
 			seatCandidates.clear();
 		
-		return new HashSet<Integer>(seatCandidates);
+		return SeatSet.copyOf(seatCandidates);
 	}
 
+	/*
+	 * Splits are scored by the model like the other allocators, there's no sensible in-order split
+	 */
+	@Override
+	public synchronized SeatSet getSplitSeats(int numSeats, long maxSearchNanos) {
+		SeatSet split = getSeats(numSeats);
+		if(!split.isEmpty()) return split;
+		
+		long[][] freeSeats = new long[model.rows()][SeatBitmaps.wordsFor(model.columns())];
+		for(int seat : seats) SeatBitmaps.set(freeSeats[SeatId.row(seat) - 1], SeatId.seat(seat) - 1);
+		
+		split = SplitGroupSearch.search(model.windowScores(), row -> freeSeats[row], numSeats, SplitGroupSearch.DEFAULT_MAX_BLOCKS, maxSearchNanos);
+		return takeSeats(split) ? split : SeatSet.EMPTY;
+	}
+	
 	@Override
 	public synchronized void returnSeat(Integer seat) {
-		seats.add(seat);
+		if(!model.isSeat(SeatId.row(seat), SeatId.seat(seat))) return;
+		if(seats.add(seat)) availability.returned(SeatId.row(seat), 1);
+	}
+	
+	@Override
+	public synchronized void returnSeats(Collection<Integer> seatsToReturn) {
+		int[] seatNums = SeatSet.sortedSeats(seatsToReturn);
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]);
+			int returned = 0;
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) == row; i++) {
+				if(model.isSeat(row, SeatId.seat(seatNums[i])) && seats.add(seatNums[i])) returned++;
+			}
+			availability.returned(row, returned);
+		}
+	}
+	
+	@Override
+	public synchronized boolean takeSeats(Collection<Integer> seatsToTake) {
+		int[] seatNums = SeatSet.sortedSeats(seatsToTake);
+		for(int seat : seatNums) {
+			if(!seats.contains(seat)) return false;
+		}
+		for(int seat : seatNums) {
+			seats.remove(seat);
+			availability.held(SeatId.row(seat), 1);
+		}
+		return true;
 	}
 
 }
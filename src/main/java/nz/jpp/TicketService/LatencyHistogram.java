@@ -0,0 +1,96 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/*
+ * A log-linear histogram of latencies in nanoseconds, in the spirit of HdrHistogram. Every power
+ * of two is cut into 32 linear buckets, so any recorded value is reported to within about 3%, from
+ * a nanosecond up to about 18 minutes. Anything longer lands in the last bucket.
+ *
+ * Recording is one increment of a preallocated counter and allocates nothing, so it can go on
+ * the hot path from any number of threads. Reads see a recent, not necessarily exact, picture.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	//2^40ns is about 18 minutes
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	static int bucket(long nanos) {
+		if(nanos < SUB_BUCKETS) return (int) Math.max(0, nanos);
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if(exponent > MAX_EXPONENT) return BUCKETS - 1;
+		int top = (int) (nanos >>> (exponent - SUB_BITS));
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+	}
+
+	//the smallest value that lands in a bucket
+	static long lowestValue(int bucket) {
+		if(bucket < 2 * SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long top = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		return top << (exponent - SUB_BITS);
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Records the time since startNanos, a System.nanoTime() taken before the operation
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long count() {
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) count += counts.get(i);
+		return count;
+	}
+
+	public long maxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            from 0 to 100
+	 * @return the latency that percentile of the recorded values are at or below, to within the bucket size, 0 if none were recorded
+	 */
+	public long percentileNanos(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+		if(total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			//report the top of the bucket, but never more than the largest value seen
+			if(seen >= rank) return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(i + 1) - 1, maxNanos());
+		}
+		return maxNanos();
+	}
+
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+		max.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d p50=%dus p99=%dus p99.9=%dus max=%dus", count(),
+				TimeUnit.NANOSECONDS.toMicros(percentileNanos(50)), TimeUnit.NANOSECONDS.toMicros(percentileNanos(99)),
+				TimeUnit.NANOSECONDS.toMicros(percentileNanos(99.9)), TimeUnit.NANOSECONDS.toMicros(maxNanos()));
+	}
+}
@@ -0,0 +1,191 @@
+package nz.jpp.TicketService;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+
+/*
+ * Places people the same way as BitmapFrontAndCenterSeatAllocator, but keeps the free seat bitmap
+ * in a ByteBuffer outside the heap: one bit per seat, so a 50,000 seat event is about 6KB that the
+ * garbage collector never traces. Thousands of events fit in one JVM without the heap, or GC
+ * pauses, growing with the seats they hold.
+ *
+ * The scores are per venue rather than per event. They come from the SeatScoringModel, whose
+ * window scores are worked out once and shared by every allocator selling that venue, so each
+ * event only adds its bitmap and a few ints per row.
+ *
+ * The buffer is a direct one of its own, or any buffer the caller hands in with bytesNeeded
+ * remaining, e.g. a slice of one large arena or of a memory-mapped file.
+ */
+public class OffHeapSeatAllocator implements SeatAllocator {
+
+	private final int columns;
+	private final int wordsPerRow;
+	private final SeatScoringModel model;
+	private final WindowScores scores;
+	//rows * wordsPerRow longs of free seat bits, row-major
+	private final ByteBuffer freeSeats;
+	private final int[] rowLongestRun;
+	private final SeatAvailability availability;
+	//one row of freeSeats copied onto the heap to search, only used under the lock
+	private final long[] scratch;
+
+	public OffHeapSeatAllocator(SeatScoringModel model) {
+		this(model, ByteBuffer.allocateDirect(bytesNeeded(model)));
+	}
+
+	/**
+	 * @param state
+	 *            where the seats are kept, from its position on. It needs bytesNeeded(model) remaining and is
+	 *            overwritten with every seat free
+	 */
+	public OffHeapSeatAllocator(SeatScoringModel model, ByteBuffer state) {
+		if(state.remaining() < bytesNeeded(model))
+			throw new IllegalArgumentException("A " + model.rows() + "x" + model.columns() + " venue needs " + bytesNeeded(model) + " bytes");
+		int rows = model.rows();
+		this.columns = model.columns();
+		this.wordsPerRow = SeatBitmaps.wordsFor(columns);
+		this.model = model;
+		this.scores = model.windowScores();
+		this.freeSeats = state.slice().order(ByteOrder.nativeOrder());
+		this.rowLongestRun = new int[rows];
+		this.scratch = new long[wordsPerRow];
+		for(int row = 0; row < rows; row++) {
+			long[] seats = model.seatRow(row);
+			storeRow(row, seats);
+			rowLongestRun[row] = SeatBitmaps.longestRun(seats, columns);
+		}
+		availability = new SeatAvailability(model);
+	}
+
+	/**
+	 * The bytes of state an allocator for the venue keeps off the heap
+	 */
+	public static int bytesNeeded(SeatScoringModel model) {
+		return model.rows() * SeatBitmaps.wordsFor(model.columns()) * Long.BYTES;
+	}
+
+	private long[] loadRow(int row) {
+		int offset = row * wordsPerRow * Long.BYTES;
+		for(int word = 0; word < wordsPerRow; word++) scratch[word] = freeSeats.getLong(offset + word * Long.BYTES);
+		return scratch;
+	}
+
+	private void storeRow(int row, long[] seats) {
+		int offset = row * wordsPerRow * Long.BYTES;
+		for(int word = 0; word < wordsPerRow; word++) freeSeats.putLong(offset + word * Long.BYTES, seats[word]);
+	}
+
+	@Override
+	public SeatScoringModel getScoringModel() {
+		return model;
+	}
+
+	@Override
+	public int numSeatsAvailable() {
+		return availability.available();
+	}
+
+	@Override
+	public int numSeatsAvailable(int row) {
+		return availability.available(row);
+	}
+
+	@Override
+	public synchronized SeatSet getSeats(int numSeats) {
+		if(numSeats <= 0 || numSeats > columns) return SeatSet.EMPTY;
+
+		double bestScore = 0;
+		int bestRow = -1;
+		int bestColumn = -1;
+
+		for(int row : scores.rowOrder(numSeats)) {
+			if(scores.bound(row, numSeats) <= bestScore + WindowScores.SCORE_EPSILON) break;
+			//only rows that could still win are copied out of the buffer
+			if(rowLongestRun[row] < numSeats) continue;
+
+			int column = scores.bestWindow(row, loadRow(row), numSeats);
+			if(column < 0) continue;
+
+			double score = scores.score(row, column, numSeats);
+			if(score > bestScore + WindowScores.SCORE_EPSILON) {
+				bestScore = score;
+				bestRow = row;
+				bestColumn = column;
+			}
+		}
+
+		if(bestRow < 0) return SeatSet.EMPTY;
+
+		long[] rowSeats = loadRow(bestRow);
+		SeatBitmaps.clearRange(rowSeats, bestColumn, bestColumn + numSeats);
+		storeRow(bestRow, rowSeats);
+		rowLongestRun[bestRow] = SeatBitmaps.longestRun(rowSeats, columns);
+		availability.held(bestRow + 1, numSeats);
+		return SeatSet.range(SeatId.encode(bestRow + 1, bestColumn + 1), numSeats);
+	}
+
+	@Override
+	public synchronized SeatSet getSplitSeats(int numSeats, long maxSearchNanos) {
+		SeatSet seats = getSeats(numSeats);
+		if(!seats.isEmpty()) return seats;
+
+		//the search reads each row before asking for the next, so they can all share the scratch row
+		seats = SplitGroupSearch.search(scores, this::loadRow, numSeats, SplitGroupSearch.DEFAULT_MAX_BLOCKS, maxSearchNanos);
+		return takeSeats(seats) ? seats : SeatSet.EMPTY;
+	}
+
+	@Override
+	public synchronized void returnSeat(Integer seatNum) {
+		int row = SeatId.row(seatNum) - 1;
+		int column = SeatId.seat(seatNum) - 1;
+		long[] rowSeats = loadRow(row);
+		if(SeatBitmaps.get(rowSeats, column) || !model.isSeat(row + 1, column + 1)) return;
+
+		SeatBitmaps.set(rowSeats, column);
+		storeRow(row, rowSeats);
+		//the returned seat can only grow the run it now belongs to
+		int runStart = SeatBitmaps.previousClearBit(rowSeats, column) + 1;
+		int runEnd = SeatBitmaps.nextClearBit(rowSeats, column, columns);
+		rowLongestRun[row] = Math.max(rowLongestRun[row], runEnd - runStart);
+		availability.returned(row + 1, 1);
+	}
+
+	@Override
+	public synchronized void returnSeats(Collection<Integer> seats) {
+		int[] seatNums = SeatSet.sortedSeats(seats);
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]) - 1;
+			long[] rowSeats = loadRow(row);
+			int returned = 0;
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) - 1 == row; i++) {
+				int column = SeatId.seat(seatNums[i]) - 1;
+				if(SeatBitmaps.get(rowSeats, column) || !model.isSeat(row + 1, column + 1)) continue;
+				SeatBitmaps.set(rowSeats, column);
+				returned++;
+			}
+			storeRow(row, rowSeats);
+			rowLongestRun[row] = SeatBitmaps.longestRun(rowSeats, columns);
+			availability.returned(row + 1, returned);
+		}
+	}
+
+	@Override
+	public synchronized boolean takeSeats(Collection<Integer> seats) {
+		int[] seatNums = SeatSet.sortedSeats(seats);
+		for(int seatNum : seatNums) {
+			if(!SeatBitmaps.get(loadRow(SeatId.row(seatNum) - 1), SeatId.seat(seatNum) - 1)) return false;
+		}
+		for(int i = 0; i < seatNums.length; ) {
+			int row = SeatId.row(seatNums[i]) - 1;
+			long[] rowSeats = loadRow(row);
+			int taken = 0;
+			for(; i < seatNums.length && SeatId.row(seatNums[i]) - 1 == row; i++, taken++)
+				SeatBitmaps.clear(rowSeats, SeatId.seat(seatNums[i]) - 1);
+			storeRow(row, rowSeats);
+			rowLongestRun[row] = SeatBitmaps.longestRun(rowSeats, columns);
+			availability.held(row + 1, taken);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,230 @@
+package nz.jpp.TicketService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * Replays an on-sale against a TicketServiceImpl in virtual time. Customers arrive, hold seats,
+ * think, and then either reserve or walk away and let the hold expire. The service runs on a
+ * VirtualClock with a manual expiry wheel on one thread, so the same traffic always gives the
+ * same result and a two hour on-sale replays in about as long as its holds take to find.
+ *
+ * Traffic is either synthetic or recorded, as CSV lines of
+ *
+ *   arrival millis from the start, email, seats, think millis, reserve or abandon
+ *
+ * with blank lines and lines starting with # skipped. Each run reports the throughput of the
+ * service in real time, the share of holds that found no seats, and how much of the venue was
+ * sold once every hold left had expired.
+ */
+public final class OnSaleSimulation {
+
+	public static final long TICK_MILLIS = 100;
+
+	public static final class Arrival {
+		final long atMillis;
+		final String email;
+		final int numSeats;
+		final long thinkMillis;
+		final boolean reserves;
+
+		public Arrival(long atMillis, String email, int numSeats, long thinkMillis, boolean reserves) {
+			this.atMillis = atMillis;
+			this.email = email;
+			this.numSeats = numSeats;
+			this.thinkMillis = thinkMillis;
+			this.reserves = reserves;
+		}
+	}
+
+	public static final class Result {
+		public final String allocator;
+		public final int seats;
+		public final int holds;
+		public final int holdsFailed;
+		public final int reservations;
+		//reserved after the hold had expired
+		public final int reservationsLate;
+		public final int seatsSold;
+		public final long virtualMillis;
+		public final long wallNanos;
+
+		Result(String allocator, int seats, int holds, int holdsFailed, int reservations, int reservationsLate, int seatsSold,
+				long virtualMillis, long wallNanos) {
+			this.allocator = allocator;
+			this.seats = seats;
+			this.holds = holds;
+			this.holdsFailed = holdsFailed;
+			this.reservations = reservations;
+			this.reservationsLate = reservationsLate;
+			this.seatsSold = seatsSold;
+			this.virtualMillis = virtualMillis;
+			this.wallNanos = wallNanos;
+		}
+
+		/**
+		 * Hold and reserve calls per real second
+		 */
+		public double throughput() {
+			return (holds + holdsFailed + reservations + reservationsLate) / (wallNanos / 1e9);
+		}
+
+		public double holdFailureRate() {
+			return holds + holdsFailed == 0 ? 0 : (double) holdsFailed / (holds + holdsFailed);
+		}
+
+		public double utilization() {
+			return seats == 0 ? 0 : (double) seatsSold / seats;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-16s %,10.0f ops/s  holds %7d  failed %6.2f%%  reserved %7d  late %5d  sold %6.2f%% of %d seats in %ds virtual",
+					allocator, throughput(), holds + holdsFailed, holdFailureRate() * 100, reservations, reservationsLate,
+					utilization() * 100, seats, TimeUnit.MILLISECONDS.toSeconds(virtualMillis));
+		}
+	}
+
+	private final List<Arrival> traffic;
+	private final int seatHoldTTLinSeconds;
+
+	public OnSaleSimulation(List<Arrival> traffic, int seatHoldTTLinSeconds) {
+		ArrayList<Arrival> sorted = new ArrayList<Arrival>(traffic);
+		Collections.sort(sorted, Comparator.comparingLong(arrival -> arrival.atMillis));
+		this.traffic = sorted;
+		this.seatHoldTTLinSeconds = seatHoldTTLinSeconds;
+	}
+
+	/**
+	 * Customers arriving over durationMillis, most of them near the start as they do when tickets go on sale
+	 *
+	 * @param maxGroup
+	 *            the largest party, smaller parties are more likely
+	 * @param reserveProbability
+	 *            the share of customers who reserve their hold, the rest abandon it
+	 * @param maxThinkMillis
+	 *            the longest a customer takes to decide, evenly spread from 0
+	 */
+	public static List<Arrival> synthetic(long seed, int arrivals, long durationMillis, int maxGroup, double reserveProbability,
+			long maxThinkMillis) {
+		Random random = new Random(seed);
+		ArrayList<Arrival> traffic = new ArrayList<Arrival>(arrivals);
+		for(int i = 0; i < arrivals; i++) {
+			//exponential with a mean of a fifth of the on-sale, cut off at the end of it
+			long at = Math.min(durationMillis, (long) (-Math.log(1 - random.nextDouble()) * durationMillis / 5));
+			int numSeats = 1 + Math.min(random.nextInt(maxGroup), random.nextInt(maxGroup));
+			long think = (long) (random.nextDouble() * maxThinkMillis);
+			traffic.add(new Arrival(at, "customer" + i + "@example.com", numSeats, think, random.nextDouble() < reserveProbability));
+		}
+		return traffic;
+	}
+
+	public static List<Arrival> read(Reader reader) throws IOException {
+		BufferedReader lines = new BufferedReader(reader);
+		ArrayList<Arrival> traffic = new ArrayList<Arrival>();
+		int lineNumber = 0;
+		for(String line = lines.readLine(); line != null; line = lines.readLine()) {
+			lineNumber++;
+			if(line.trim().isEmpty() || line.startsWith("#")) continue;
+			String[] cells = line.split(",");
+			try {
+				if(cells.length != 5) throw new IllegalArgumentException("expected 5 cells");
+				String decision = cells[4].trim();
+				if(!decision.equals("reserve") && !decision.equals("abandon")) throw new IllegalArgumentException("expected reserve or abandon");
+				traffic.add(new Arrival(Long.parseLong(cells[0].trim()), cells[1].trim(), Integer.parseInt(cells[2].trim()),
+						Long.parseLong(cells[3].trim()), decision.equals("reserve")));
+			} catch(IllegalArgumentException e) {
+				throw new IOException("Bad arrival \"" + line + "\" on line " + lineNumber, e);
+			}
+		}
+		return traffic;
+	}
+
+	private static final class Decision {
+		final long atMillis;
+		final SeatHold seatHold;
+
+		Decision(long atMillis, SeatHold seatHold) {
+			this.atMillis = atMillis;
+			this.seatHold = seatHold;
+		}
+	}
+
+	/**
+	 * Replays the traffic against a service on allocator, which should have every seat available
+	 */
+	public Result run(String name, SeatAllocator allocator) {
+		VirtualClock clock = new VirtualClock(0);
+		int seats = allocator.numSeatsAvailable();
+		int holds = 0, holdsFailed = 0, reservations = 0, reservationsLate = 0;
+		long wallStart = System.nanoTime();
+
+		try (HoldExpiryWheel wheel = HoldExpiryWheel.manual(clock, TICK_MILLIS, HoldExpiryWheel.DEFAULT_WHEEL_SIZE);
+				TicketServiceImpl service = new TicketServiceImpl(allocator, seatHoldTTLinSeconds, wheel)) {
+			PriorityQueue<Decision> decisions = new PriorityQueue<Decision>(Comparator.comparingLong(decision -> decision.atMillis));
+			int next = 0;
+			while(next < traffic.size() || !decisions.isEmpty()) {
+				//decisions due at the same time as an arrival go first, they may free seats
+				boolean arrival = decisions.isEmpty() || (next < traffic.size() && traffic.get(next).atMillis < decisions.peek().atMillis);
+				advanceTo(clock, wheel, arrival ? traffic.get(next).atMillis : decisions.peek().atMillis);
+
+				if(arrival) {
+					Arrival customer = traffic.get(next++);
+					SeatHold seatHold = service.findAndHoldSeats(customer.numSeats, customer.email);
+					if(seatHold == null) {
+						holdsFailed++;
+					} else {
+						holds++;
+						if(customer.reserves) decisions.add(new Decision(customer.atMillis + customer.thinkMillis, seatHold));
+					}
+				} else {
+					SeatHold seatHold = decisions.poll().seatHold;
+					String confirmation = service.reserveSeats(seatHold.getSeatHoldId(), seatHold.getEmail());
+					if(TicketService.SEAT_HOLD_ID_EXPIRED.equals(confirmation) || TicketService.SEAT_HOLD_ID_NOT_FOUND.equals(confirmation))
+						reservationsLate++;
+					else
+						reservations++;
+				}
+			}
+			//let every hold nobody reserved run out
+			advanceTo(clock, wheel, clock.millis() + TimeUnit.SECONDS.toMillis(seatHoldTTLinSeconds) + 2 * TICK_MILLIS);
+
+			return new Result(name, seats, holds, holdsFailed, reservations, reservationsLate, seats - service.numSeatsAvailable(),
+					clock.millis(), System.nanoTime() - wallStart);
+		}
+	}
+
+	private static void advanceTo(VirtualClock clock, HoldExpiryWheel wheel, long millis) {
+		clock.advanceTo(millis);
+		wheel.advance();
+	}
+
+	/**
+	 * Runs a two hour on-sale against every allocator: java nz.jpp.TicketService.OnSaleSimulation [rows columns arrivals]
+	 */
+	public static void main(String[] args) {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int columns = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int arrivals = args.length > 2 ? Integer.parseInt(args[2]) : 4 * rows * columns / 3;
+		OnSaleSimulation simulation = new OnSaleSimulation(
+				synthetic(42, arrivals, TimeUnit.HOURS.toMillis(2), 8, 0.7, TimeUnit.MINUTES.toMillis(12)), 600);
+
+		run(simulation, "inOrder", () -> new InOrderSeatAllocator(rows, columns));
+		run(simulation, "frontAndCenter", () -> new FrontAndCenterSeatAllocator(rows, columns));
+		run(simulation, "bitmap", () -> new BitmapFrontAndCenterSeatAllocator(rows, columns));
+		run(simulation, "concurrent", () -> new ConcurrentFrontAndCenterSeatAllocator(rows, columns));
+	}
+
+	private static void run(OnSaleSimulation simulation, String name, Supplier<SeatAllocator> allocator) {
+		System.out.println(simulation.run(name, allocator.get()));
+	}
+}
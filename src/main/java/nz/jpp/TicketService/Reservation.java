@@ -0,0 +1,28 @@
+package nz.jpp.TicketService;
+
+/*
+ * Seats a customer has reserved, found again by the confirmation code reserveSeats returned
+ */
+public final class Reservation {
+	private final String confirmationCode;
+	private final int seatHoldId;
+	private final String email;
+	private final SeatSet seats;
+	
+	Reservation(String confirmationCode, int seatHoldId, String email, SeatSet seats) {
+		this.confirmationCode = confirmationCode;
+		this.seatHoldId = seatHoldId;
+		this.email = email;
+		this.seats = seats;
+	}
+	
+	public String getConfirmationCode() { return confirmationCode; }
+	public int getSeatHoldId() { return seatHoldId; }
+	public String getEmail() { return email; }
+	public SeatSet getSeats() { return seats; }
+	
+	//this reservation less some of its seats
+	Reservation without(SeatSet released) {
+		return new Reservation(confirmationCode, seatHoldId, email, SeatSet.of(seats.seatStream().filter(seat -> !released.contains(seat)).toArray()));
+	}
+}
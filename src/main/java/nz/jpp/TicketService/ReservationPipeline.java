@@ -0,0 +1,145 @@
+package nz.jpp.TicketService;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/*
+ * A single writer that applies queued findAndHoldSeats/reserveSeats calls in batches. Callers
+ * put a command on a bounded ring (ArrayBlockingQueue is a circular array) and get a future back.
+ * The writer thread drains whatever has queued up since its last batch and hands the whole lot
+ * to the service in one go, so the allocator lock and the journal fsync are paid once per batch
+ * rather than once per call. Under a burst the batches grow and the per-call cost falls.
+ *
+ * A full ring blocks the caller until the writer catches up.
+ */
+class ReservationPipeline implements AutoCloseable {
+
+	static final int DEFAULT_CAPACITY = 1024;
+	static final int MAX_BATCH = 256;
+
+	/*
+	 * One queued call. Holds complete held, reserves complete reserved.
+	 */
+	static final class Command {
+		final int numSeats;
+		final int seatHoldId;
+		final String email;
+		final CompletableFuture<SeatHold> held;
+		final CompletableFuture<String> reserved;
+
+		//results, filled in by the writer before the batch completes
+		SeatHold seatHold;
+		String confirmation;
+		//set once the command has been applied and committed, so it completes even if a later one in its batch fails
+		boolean applied;
+
+		private Command(int numSeats, int seatHoldId, String email, CompletableFuture<SeatHold> held, CompletableFuture<String> reserved) {
+			this.numSeats = numSeats;
+			this.seatHoldId = seatHoldId;
+			this.email = email;
+			this.held = held;
+			this.reserved = reserved;
+		}
+
+		boolean isHold() {
+			return held != null;
+		}
+
+		void complete() {
+			if(isHold()) held.complete(seatHold);
+			else reserved.complete(confirmation);
+		}
+
+		void fail(Throwable t) {
+			if(isHold()) held.completeExceptionally(t);
+			else reserved.completeExceptionally(t);
+		}
+	}
+
+	private final ArrayBlockingQueue<Command> ring;
+	private final Consumer<ArrayList<Command>> applyBatch;
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param applyBatch
+	 *            fills in the results of every command in a batch, the pipeline completes the futures afterwards. If
+	 *            it throws, the commands it marked applied complete and the rest fail
+	 */
+	ReservationPipeline(int capacity, Consumer<ArrayList<Command>> applyBatch) {
+		this.ring = new ArrayBlockingQueue<Command>(capacity);
+		this.applyBatch = applyBatch;
+		this.writer = new Thread(this::drain, "reservation-pipeline");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	CompletableFuture<SeatHold> hold(int numSeats, String email) {
+		CompletableFuture<SeatHold> future = new CompletableFuture<SeatHold>();
+		submit(new Command(numSeats, -1, email, future, null));
+		return future;
+	}
+
+	CompletableFuture<String> reserve(int seatHoldId, String email) {
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		submit(new Command(0, seatHoldId, email, null, future));
+		return future;
+	}
+
+	private void submit(Command command) {
+		if(closed) {
+			command.fail(new IllegalStateException("The reservation pipeline is closed"));
+			return;
+		}
+		try {
+			ring.put(command);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			command.fail(e);
+		}
+		//close may have drained the ring just before our put
+		if(closed && ring.remove(command)) command.fail(new IllegalStateException("The reservation pipeline is closed"));
+	}
+
+	private void drain() {
+		ArrayList<Command> batch = new ArrayList<Command>(MAX_BATCH);
+		while(!closed) {
+			try {
+				batch.add(ring.take());
+			} catch(InterruptedException e) {
+				break;
+			}
+			ring.drainTo(batch, MAX_BATCH - 1);
+
+			try {
+				applyBatch.accept(batch);
+				for(Command command : batch) command.complete();
+			} catch(Throwable t) {
+				for(Command command : batch) {
+					if(command.applied) command.complete();
+					else command.fail(t);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Stops the writer. Commands still queued fail with an IllegalStateException.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ArrayList<Command> remaining = new ArrayList<Command>();
+		ring.drainTo(remaining);
+		for(Command command : remaining) command.fail(new IllegalStateException("The reservation pipeline is closed"));
+	}
+}
@@ -0,0 +1,150 @@
+package nz.jpp.TicketService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*
+ * The reservations of a TicketServiceImpl by confirmation code, with a second index by customer
+ * email. Both are concurrent maps, so lookups never lock and changes only lock the one bin they
+ * touch. Every reservation in the code index is in the email index under its email: a change to a
+ * customer's reservation updates the code index inside the compute of their email's bin, so
+ * changes to the same customer's reservations can't interleave between the two indexes.
+ */
+final class ReservationStore {
+	
+	private final ConcurrentHashMap<String,Reservation> byCode = new ConcurrentHashMap<String,Reservation>();
+	private final ConcurrentHashMap<String,Set<Reservation>> byEmail = new ConcurrentHashMap<String,Set<Reservation>>();
+	
+	/**
+	 * Reserves a hold's seats under a new confirmation code, passing the reservation to beforeAdd
+	 * while the code is taken but before any change to the customer's reservations can see it, e.g.
+	 * to journal it. If beforeAdd throws, the code is given back and nothing is added.
+	 */
+	Reservation add(SeatHold seatHold, Consumer<Reservation> beforeAdd) {
+		while(true) {
+			Reservation reservation = new Reservation(ConfirmationCodes.next(), seatHold.getSeatHoldId(), seatHold.getEmail(), seatHold.getSeats());
+			//a repeated code would overwrite someone else's reservation, so draw again
+			if(add(reservation, beforeAdd)) return reservation;
+		}
+	}
+	
+	private boolean add(Reservation reservation, Consumer<Reservation> beforeAdd) {
+		String code = reservation.getConfirmationCode();
+		if(reservation.getEmail() == null) {
+			if(byCode.putIfAbsent(code, reservation) != null) return false;
+			take(reservation, beforeAdd);
+			return true;
+		}
+		boolean[] added = new boolean[1];
+		//releases lock the email's bin, so none of them sees the code until the compute returns
+		byEmail.compute(reservation.getEmail(), (email, reservations) -> {
+			if(byCode.putIfAbsent(code, reservation) != null) return reservations;
+			take(reservation, beforeAdd);
+			added[0] = true;
+			if(reservations == null) reservations = ConcurrentHashMap.newKeySet();
+			reservations.add(reservation);
+			return reservations;
+		});
+		return added[0];
+	}
+	
+	private void take(Reservation reservation, Consumer<Reservation> beforeAdd) {
+		try {
+			beforeAdd.accept(reservation);
+		} catch(RuntimeException | Error e) {
+			byCode.remove(reservation.getConfirmationCode(), reservation);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Adds a reservation that already has its code, e.g. from a journal
+	 * @return false if the code is already taken
+	 */
+	boolean restore(Reservation reservation) {
+		if(reservation.getEmail() == null) return byCode.putIfAbsent(reservation.getConfirmationCode(), reservation) == null;
+		boolean[] restored = new boolean[1];
+		byEmail.compute(reservation.getEmail(), (email, reservations) -> {
+			restored[0] = byCode.putIfAbsent(reservation.getConfirmationCode(), reservation) == null;
+			if(!restored[0]) return reservations;
+			if(reservations == null) reservations = ConcurrentHashMap.newKeySet();
+			reservations.add(reservation);
+			return reservations;
+		});
+		return restored[0];
+	}
+	
+	Reservation get(String confirmationCode) {
+		return confirmationCode == null ? null : byCode.get(confirmationCode);
+	}
+	
+	boolean contains(String confirmationCode) {
+		return get(confirmationCode) != null;
+	}
+	
+	/**
+	 * Removes a reservation unless it has already been removed or replaced
+	 */
+	boolean remove(Reservation reservation) {
+		return release(reservation, null, () -> {});
+	}
+	
+	/**
+	 * Swaps a reservation for a smaller one under the same code and email, unless it has already been removed or replaced
+	 */
+	boolean replace(Reservation reservation, Reservation smaller) {
+		return release(reservation, smaller, () -> {});
+	}
+	
+	/**
+	 * Removes a reservation, or swaps it for a smaller one if smaller isn't null, unless it has already
+	 * been removed or replaced. beforeChange runs once the reservation is known to be current and before
+	 * anything changes, e.g. to journal the release. If it throws, the reservation is left as it was.
+	 */
+	boolean release(Reservation reservation, Reservation smaller, Runnable beforeChange) {
+		String code = reservation.getConfirmationCode();
+		boolean[] released = new boolean[1];
+		if(reservation.getEmail() == null) {
+			byCode.computeIfPresent(code, (c, current) -> {
+				if(current != reservation) return current;
+				beforeChange.run();
+				released[0] = true;
+				return smaller;
+			});
+			return released[0];
+		}
+		byEmail.computeIfPresent(reservation.getEmail(), (email, reservations) -> {
+			//the code only changes inside this bin, so it can't change between the check and the put
+			if(byCode.get(code) != reservation) return reservations;
+			beforeChange.run();
+			released[0] = true;
+			reservations.remove(reservation);
+			if(smaller == null) {
+				byCode.remove(code);
+			} else {
+				byCode.put(code, smaller);
+				reservations.add(smaller);
+			}
+			return reservations.isEmpty() ? null : reservations;
+		});
+		return released[0];
+	}
+	
+	List<Reservation> forEmail(String email) {
+		Set<Reservation> reservations = email == null ? null : byEmail.get(email);
+		return reservations == null ? Collections.<Reservation>emptyList() : new ArrayList<Reservation>(reservations);
+	}
+	
+	Collection<Reservation> all() {
+		return byCode.values();
+	}
+	
+	int size() {
+		return byCode.size();
+	}
+}
@@ -1,5 +1,6 @@
 package nz.jpp.TicketService;
 
+import java.util.Collection;
 import java.util.Set;
 
 public interface SeatAllocator {
@@ -11,7 +12,68 @@ public interface SeatAllocator {
 	 */
 	public int numSeatsAvailable();
 	
+	/**
+	 * The number of seats in one row that are neither held nor reserved
+	 *
+	 * @param row
+	 *            the row number, starting from 1
+	 * @return the number of tickets available in the row
+	 */
+	public int numSeatsAvailable(int row);
+	
+	/**
+	 * Find and take the best numSeats seats that are together
+	 *
+	 * @param numSeats
+	 *            the number of seats wanted
+	 * @return the seats, or an empty set if they can't be found. The allocators in this package return a SeatSet
+	 */
 	public Set<Integer> getSeats(int numSeats);
 	
+	/**
+	 * Like getSeats, but when no row has numSeats seats together the party is split into as few blocks
+	 * as possible, preferably in adjacent rows, rather than turned away
+	 *
+	 * @param numSeats
+	 *            the number of seats wanted
+	 * @return the seats, or an empty set if no split could be found within 5ms
+	 */
+	public default Set<Integer> getSplitSeats(int numSeats) {
+		return getSplitSeats(numSeats, SplitGroupSearch.DEFAULT_MAX_SEARCH_NANOS);
+	}
+	
+	/**
+	 * getSplitSeats with its own time limit. A search that runs out of time finds nothing, so use Long.MAX_VALUE
+	 * where the seats handed out must not depend on how fast the machine is
+	 *
+	 * @param maxSearchNanos
+	 *            how long to look for a split before giving up
+	 */
+	public Set<Integer> getSplitSeats(int numSeats, long maxSearchNanos);
+	
 	public void returnSeat(Integer seat);
+	
+	/**
+	 * Return many seats at once, e.g. every seat of the holds that expired in one go. 
+	 * Allocators take their locks once per row rather than once per seat.
+	 *
+	 * @param seats
+	 *            the seats to make available again
+	 */
+	public void returnSeats(Collection<Integer> seats);
+	
+	/**
+	 * Take a specific set of seats, e.g. when holds and reservations are restored from a journal.
+	 * Either every seat is taken or, if any of them isn't available, none are.
+	 *
+	 * @param seats
+	 *            the seats to take
+	 * @return true if the seats were taken
+	 */
+	public boolean takeSeats(Collection<Integer> seats);
+	
+	/**
+	 * @return the venue this allocator sells: its size, which positions are seats and how they score
+	 */
+	public SeatScoringModel getScoringModel();
 }
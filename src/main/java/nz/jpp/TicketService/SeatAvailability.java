@@ -0,0 +1,49 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counts free seats for an allocator so availability can be read without touching the 
+ * allocator's locks. The venue total is a LongAdder, so concurrent holds and returns update
+ * separate cells instead of fighting over one counter, and each row keeps its own count.
+ * Rows are numbered from 1 like seat numbers.
+ */
+final class SeatAvailability {
+	
+	private final LongAdder total = new LongAdder();
+	private final AtomicIntegerArray rows;
+	
+	SeatAvailability(int rows, int columns) {
+		this.rows = new AtomicIntegerArray(rows);
+		for(int row = 0; row < rows; row++) this.rows.set(row, columns);
+		total.add((long) rows * columns);
+	}
+	
+	//only counts the positions the model has a seat for
+	SeatAvailability(SeatScoringModel model) {
+		this.rows = new AtomicIntegerArray(model.rows());
+		for(int row = 1; row <= model.rows(); row++) {
+			this.rows.set(row - 1, model.seats(row));
+			total.add(model.seats(row));
+		}
+	}
+	
+	void held(int row, int numSeats) {
+		rows.addAndGet(row - 1, -numSeats);
+		total.add(-numSeats);
+	}
+	
+	void returned(int row, int numSeats) {
+		rows.addAndGet(row - 1, numSeats);
+		total.add(numSeats);
+	}
+	
+	int available() {
+		return (int) total.sum();
+	}
+	
+	int available(int row) {
+		return rows.get(row - 1);
+	}
+}
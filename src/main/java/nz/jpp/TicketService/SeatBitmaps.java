@@ -0,0 +1,135 @@
+package nz.jpp.TicketService;
+
+/*
+ * Word level helpers for rows of seats stored as long[] bitmaps, one bit per seat with the
+ * bit set while the seat is free. Mirrors the scanning done by java.util.BitSet but works on
+ * plain arrays so the allocators can keep one flat array per row.
+ */
+final class SeatBitmaps {
+	
+	private SeatBitmaps() {}
+	
+	static long[] newRow(int columns) {
+		long[] words = new long[wordsFor(columns)];
+		setRange(words, 0, columns);
+		return words;
+	}
+	
+	static int wordsFor(int columns) {
+		return (columns + 63) >>> 6;
+	}
+	
+	static boolean get(long[] words, int bit) {
+		return (words[bit >>> 6] & (1L << bit)) != 0;
+	}
+	
+	static void set(long[] words, int bit) {
+		words[bit >>> 6] |= 1L << bit;
+	}
+	
+	static void clear(long[] words, int bit) {
+		words[bit >>> 6] &= ~(1L << bit);
+	}
+	
+	/*
+	 * Sets bits [from, to)
+	 */
+	static void setRange(long[] words, int from, int to) {
+		for(int bit = from; bit < to; ) {
+			int word = bit >>> 6;
+			int end = Math.min(to, (word + 1) << 6);
+			words[word] |= rangeMask(bit, end);
+			bit = end;
+		}
+	}
+	
+	/*
+	 * Clears bits [from, to)
+	 */
+	static void clearRange(long[] words, int from, int to) {
+		for(int bit = from; bit < to; ) {
+			int word = bit >>> 6;
+			int end = Math.min(to, (word + 1) << 6);
+			words[word] &= ~rangeMask(bit, end);
+			bit = end;
+		}
+	}
+	
+	/*
+	 * True if every bit in [from, to) is set
+	 */
+	static boolean allSet(long[] words, int from, int to) {
+		for(int bit = from; bit < to; ) {
+			int word = bit >>> 6;
+			int end = Math.min(to, (word + 1) << 6);
+			long mask = rangeMask(bit, end);
+			if((words[word] & mask) != mask) return false;
+			bit = end;
+		}
+		return true;
+	}
+	
+	//mask covering bits [from, to) of the word containing from, to must be in the same word or its end
+	private static long rangeMask(int from, int to) {
+		long mask = -1L << from;
+		int high = to & 63;
+		if(high != 0) mask &= -1L >>> (64 - high);
+		return mask;
+	}
+	
+	/*
+	 * Index of the first set bit at or after from and before limit, or limit if there is none
+	 */
+	static int nextSetBit(long[] words, int from, int limit) {
+		if(from >= limit) return limit;
+		int word = from >>> 6;
+		long bits = words[word] & (-1L << from);
+		while(bits == 0) {
+			if(++word >= words.length) return limit;
+			bits = words[word];
+		}
+		return Math.min(limit, (word << 6) + Long.numberOfTrailingZeros(bits));
+	}
+	
+	/*
+	 * Index of the first clear bit at or after from and before limit, or limit if there is none
+	 */
+	static int nextClearBit(long[] words, int from, int limit) {
+		if(from >= limit) return limit;
+		int word = from >>> 6;
+		long bits = ~words[word] & (-1L << from);
+		while(bits == 0) {
+			if(++word >= words.length) return limit;
+			bits = ~words[word];
+		}
+		return Math.min(limit, (word << 6) + Long.numberOfTrailingZeros(bits));
+	}
+	
+	/*
+	 * Index of the last clear bit before from, or -1 if there is none
+	 */
+	static int previousClearBit(long[] words, int from) {
+		if(from <= 0) return -1;
+		int word = (from - 1) >>> 6;
+		long bits = ~words[word] & (-1L >>> (63 - ((from - 1) & 63)));
+		while(bits == 0) {
+			if(--word < 0) return -1;
+			bits = ~words[word];
+		}
+		return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+	}
+	
+	/*
+	 * Length of the longest run of set bits below limit
+	 */
+	static int longestRun(long[] words, int limit) {
+		int longest = 0;
+		int start = nextSetBit(words, 0, limit);
+		while(start < limit) {
+			int end = nextClearBit(words, start, limit);
+			longest = Math.max(longest, end - start);
+			start = nextSetBit(words, end, limit);
+		}
+		return longest;
+	}
+}
@@ -0,0 +1,136 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Every seat a TicketServiceImpl holds, reserves or frees, as a stream of events numbered from 1,
+ * for caches, seat map UIs and analytics that would otherwise poll. Set one on the service with
+ * setChangeFeed.
+ *
+ * The events live in a fixed ring of longs, each packing the seat id, its new state and the low
+ * bits of its sequence number. Publishing claims a run of sequence numbers with one getAndAdd and
+ * writes each seat with a lazySet, so a hold pays no lock and no fence per seat. Nothing waits
+ * for subscribers: each one reads at its own pace and the ring simply overwrites the oldest events.
+ *
+ * A subscriber that falls more than capacity events behind is told so by poll returning OVERFLOW.
+ * It should resync, take a fresh SeatMapSnapshot and carry on polling. Events say what state a
+ * seat is now in rather than what changed, so events the snapshot already shows are harmless.
+ * A subscriber also waits at an event whose publisher hasn't finished writing it, even if later
+ * events are ready, so it always sees each seat's events in order.
+ */
+public final class SeatChangeFeed {
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	public static final int OVERFLOW = -1;
+
+	private static final int SEAT_BITS = 31;
+	private static final int STATE_BITS = 2;
+	private static final int TAG_SHIFT = SEAT_BITS + STATE_BITS;
+	private static final long TAG_MASK = (1L << (64 - TAG_SHIFT)) - 1;
+	private static final SeatMapSnapshot.State[] STATES = SeatMapSnapshot.State.values();
+
+	@FunctionalInterface
+	public interface Listener {
+		void seatChanged(long sequence, int seatId, SeatMapSnapshot.State state);
+	}
+
+	private final AtomicLongArray events;
+	private final int mask;
+	//the next sequence number to hand out
+	private final AtomicLong next = new AtomicLong(1);
+
+	public SeatChangeFeed() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            how many events a subscriber can fall behind before it has to resync, a power of two
+	 */
+	public SeatChangeFeed(int capacity) {
+		if(capacity < 2 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("The capacity has to be a power of two, not " + capacity);
+		this.events = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the last sequence number handed out, its event may still be being written
+	 */
+	public long sequence() {
+		return next.get() - 1;
+	}
+
+	//slots start out as 0, tagged with sequence 0, which is never handed out
+	private static long event(long sequence, int seatId, SeatMapSnapshot.State state) {
+		return (sequence & TAG_MASK) << TAG_SHIFT | (long) state.ordinal() << SEAT_BITS | seatId;
+	}
+
+	void publish(SeatSet seats, SeatMapSnapshot.State state) {
+		int size = seats.size();
+		if(size == 0) return;
+		long sequence = next.getAndAdd(size);
+		for(int i = 0; i < size; i++, sequence++) events.lazySet((int) sequence & mask, event(sequence, seats.get(i), state));
+	}
+
+	/**
+	 * A reader that starts with the next event published. Each subscriber is read by one thread at a time.
+	 */
+	public Subscriber subscribe() {
+		return new Subscriber(next.get());
+	}
+
+	public final class Subscriber {
+		private long position;
+
+		private Subscriber(long position) {
+			this.position = position;
+		}
+
+		/**
+		 * @return the sequence number of the next event this subscriber reads
+		 */
+		public long position() {
+			return position;
+		}
+
+		/**
+		 * Hands up to maxEvents published events to listener, oldest first
+		 *
+		 * @return the number of events handed over, or OVERFLOW if some were overwritten before they were read.
+		 *         Nothing more is read until resync
+		 */
+		public int poll(Listener listener, int maxEvents) {
+			int read = 0;
+			while(read < maxEvents) {
+				long event = events.get((int) position & mask);
+				//how far the slot's sequence is ahead of ours, modulo the tag bits
+				long ahead = ((event >>> TAG_SHIFT) - position) & TAG_MASK;
+				if(ahead != 0) {
+					//an older sequence means ours isn't written yet, a newer one means it was overwritten
+					if(ahead > TAG_MASK >>> 1) return read;
+					return OVERFLOW;
+				}
+				listener.seatChanged(position, (int) event & ((1 << SEAT_BITS) - 1), STATES[(int) (event >>> SEAT_BITS) & ((1 << STATE_BITS) - 1)]);
+				position++;
+				read++;
+			}
+			return read;
+		}
+
+		/**
+		 * Skips to the next event published. Take a SeatMapSnapshot after calling this and apply the events
+		 * polled from then on to it
+		 *
+		 * @return the sequence number of the next event
+		 */
+		public long resync() {
+			position = next.get();
+			return position;
+		}
+	}
+}
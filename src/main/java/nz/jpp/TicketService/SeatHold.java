@@ -1,7 +1,8 @@
 package nz.jpp.TicketService;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.HashSet;
+import java.time.ZoneId;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -13,30 +14,67 @@ public class SeatHold {
 	
 	private final int seatHoldId;
 	private final String email;
-	private final LocalDateTime expirationTime;
-	private final Set<Integer> seats;
+	//from a TicketClock, milliseconds since the epoch
+	private final long expirationMillis;
+	private final SeatSet seats;
+	private final SeatHoldKey key;
 	
 	public SeatHold(String email, int ttlSeconds, Set<Integer> seats) {
-		this.seatHoldId = idGenerator.getAndIncrement();
-		this.seats = new HashSet<Integer>(seats);
+		this(email, ttlSeconds, seats, TicketClock.SYSTEM);
+	}
+	
+	public SeatHold(String email, int ttlSeconds, Set<Integer> seats, TicketClock clock) {
+		this(idGenerator.getAndIncrement(), email, clock.millis() + ttlSeconds * 1000L, SeatSet.copyOf(seats));
+	}
+	
+	private SeatHold(int seatHoldId, String email, long expirationMillis, SeatSet seats) {
+		this.seatHoldId = seatHoldId;
+		this.seats = seats;
 		this.email = email;
-		this.expirationTime = LocalDateTime.now().plusSeconds(ttlSeconds);
+		this.key = new SeatHoldKey(seatHoldId, email);
+		this.expirationMillis = expirationMillis;
+	}
+	
+	/*
+	 * Recreates a hold restored from a journal. New holds will get ids after seatHoldId
+	 */
+	static SeatHold restore(int seatHoldId, String email, long expirationMillis, SeatSet seats) {
+		idGenerator.accumulateAndGet(seatHoldId + 1, Math::max);
+		return new SeatHold(seatHoldId, email, expirationMillis, seats);
 	}
 	
 	public int getSeatHoldId() { return seatHoldId; }
 	public String getEmail() { return email; }
+	public long getExpirationMillis() { return expirationMillis; }
 	
-	public SeatHoldKey getKey() { return new SeatHoldKey(seatHoldId, email); }
+	public LocalDateTime getExpirationTime() {
+		return LocalDateTime.ofInstant(Instant.ofEpochMilli(expirationMillis), ZoneId.systemDefault());
+	}
+	
+	public SeatHoldKey getKey() { return key; }
 	
-	public Set<Integer> getSeats() {
-		return new HashSet<Integer>(seats);
+	//SeatSet is immutable so there's no need for a defensive copy
+	public SeatSet getSeats() {
+		return seats;
 	}
 	
 	public boolean isExpired(LocalDateTime now) {
-		return expirationTime.isBefore(now);
+		return getExpirationTime().isBefore(now);
 	}
 	
 	public boolean isLive(LocalDateTime now) {
 		return !isExpired(now);
 	}
+	
+	/**
+	 * @param nowMillis
+	 *            the time from the TicketClock the hold was made with
+	 */
+	public boolean isExpired(long nowMillis) {
+		return expirationMillis < nowMillis;
+	}
+	
+	public boolean isLive(long nowMillis) {
+		return !isExpired(nowMillis);
+	}
 }
\ No newline at end of file
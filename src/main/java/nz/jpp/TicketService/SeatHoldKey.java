@@ -19,7 +19,7 @@ public class SeatHoldKey {
             return false;
         }
         SeatHoldKey other = (SeatHoldKey) o;
-        return this.seatHoldId == other.seatHoldId && this.email == other.email;
+        return this.seatHoldId == other.seatHoldId && Objects.equals(this.email, other.email);
 	}
 	
 	@Override
@@ -0,0 +1,62 @@
+package nz.jpp.TicketService;
+
+/*
+ * Seat numbers are packed ints: 7 bits of section, 12 bits of row and 12 bits of seat, so 
+ * seat ids stay positive, sort by section then row then seat, and seats next to each other 
+ * in a row have consecutive ids. Rows and seats are numbered from 1, sections from 0; venues
+ * that aren't split into sections use section 0.
+ * 
+ * That allows up to 4095 rows of 4095 seats in each of 128 sections.
+ */
+public final class SeatId {
+	
+	public static final int MAX_SECTION = (1 << 7) - 1;
+	public static final int MAX_ROW = (1 << 12) - 1;
+	public static final int MAX_SEAT = (1 << 12) - 1;
+	
+	private static final int SEAT_BITS = 12;
+	private static final int ROW_BITS = 12;
+	
+	private SeatId() {}
+	
+	public static int encode(int row, int seat) {
+		return encode(0, row, seat);
+	}
+	
+	public static int encode(int section, int row, int seat) {
+		if(section < 0 || section > MAX_SECTION || row < 1 || row > MAX_ROW || seat < 1 || seat > MAX_SEAT)
+			throw new IllegalArgumentException("No seat id for section " + section + " row " + row + " seat " + seat);
+		return (section << (ROW_BITS + SEAT_BITS)) | (row << SEAT_BITS) | seat;
+	}
+	
+	public static int section(int seatId) {
+		return seatId >>> (ROW_BITS + SEAT_BITS);
+	}
+	
+	public static int row(int seatId) {
+		return (seatId >>> SEAT_BITS) & MAX_ROW;
+	}
+	
+	public static int seat(int seatId) {
+		return seatId & MAX_SEAT;
+	}
+	
+	/**
+	 * The position of the seat in a row-major array of a venue section with the given number of columns
+	 */
+	public static int index(int seatId, int columns) {
+		return (row(seatId) - 1) * columns + seat(seatId) - 1;
+	}
+	
+	/*
+	 * Checks a venue fits in the seat id scheme
+	 */
+	static void checkVenue(int rows, int columns) {
+		if(rows < 1 || rows > MAX_ROW || columns < 1 || columns > MAX_SEAT)
+			throw new IllegalArgumentException("Venues can have 1 to " + MAX_ROW + " rows of 1 to " + MAX_SEAT + " seats, not " + rows + "x" + columns);
+	}
+	
+	public static String toString(int seatId) {
+		return "section " + section(seatId) + " row " + row(seatId) + " seat " + seat(seatId);
+	}
+}
@@ -0,0 +1,489 @@
+package nz.jpp.TicketService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+ * An append-only journal of seat holds, reservations and expiries, plus snapshots of the
+ * holds and reservations so the journal doesn't grow forever. 
+ * 
+ * Records are appended to an in-memory batch and a single flusher thread writes and fsyncs
+ * whatever has built up while the previous fsync was running, so many threads committing at
+ * once share one fsync (group commit). With syncOnCommit off, commit() doesn't wait for the
+ * fsync at all, trading the last few milliseconds of changes for in-memory speed. Once a write
+ * fails the journal is broken: every append and commit after it throws, whether or not it syncs
+ * on commit, and nothing more is buffered. Appending to a closed journal throws too.
+ * 
+ * The directory holds journal-<generation>.log and snapshot-<generation>.snap files. A snapshot
+ * of generation G contains the state made by every record in the journals before G, so 
+ * startup loads the latest snapshot and replays the journals from its generation on. Every
+ * record is length prefixed and checksummed, and replay stops at the first torn record.
+ */
+public class SeatJournal implements AutoCloseable {
+	
+	/**
+	 * Receives the records of the latest snapshot and then the journal, in the order they were written
+	 */
+	public interface Replay {
+		void hold(int seatHoldId, String email, long expirationMillis, SeatSet seats);
+		void reserve(String confirmationCode, int seatHoldId, String email, SeatSet seats);
+		void expire(int seatHoldId, String email);
+		void release(String confirmationCode, SeatSet seats);
+	}
+	
+	private static final byte HOLD = 1;
+	private static final byte RESERVATION = 2;
+	private static final byte EXPIRE = 3;
+	private static final byte RELEASE = 4;
+	
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String JOURNAL_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+	
+	/*
+	 * A growable buffer of framed records: int body length, body, int CRC32 of the body
+	 */
+	private static class RecordBuffer {
+		private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		private final CRC32 crc = new CRC32();
+		private int recordStart;
+		
+		void begin(byte type, int bodySize) {
+			if(buffer.remaining() < bodySize + 8) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bodySize + 8));
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+			recordStart = buffer.position();
+			buffer.putInt(0);
+			buffer.put(type);
+		}
+		
+		void end() {
+			int bodyLength = buffer.position() - recordStart - 4;
+			buffer.putInt(recordStart, bodyLength);
+			
+			ByteBuffer body = buffer.duplicate();
+			body.position(recordStart + 4);
+			body.limit(recordStart + 4 + bodyLength);
+			crc.reset();
+			crc.update(body);
+			buffer.putInt((int) crc.getValue());
+		}
+		
+		void putInt(int value) { buffer.putInt(value); }
+		
+		void putString(byte[] bytes) {
+			buffer.putShort((short) bytes.length);
+			buffer.put(bytes);
+		}
+		
+		void putSeats(SeatSet seats) {
+			buffer.putInt(seats.size());
+			for(int i = 0; i < seats.size(); i++) buffer.putInt(seats.get(i));
+		}
+		
+		void putLong(long value) { buffer.putLong(value); }
+		
+		boolean isEmpty() { return buffer.position() == 0; }
+		
+		int size() { return buffer.position(); }
+		
+		void writeTo(FileChannel channel) throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+		
+		void hold(SeatHold seatHold) {
+			byte[] email = seatHold.getEmail().getBytes(StandardCharsets.UTF_8);
+			begin(HOLD, 1 + 4 + 2 + email.length + 8 + 4 + 4 * seatHold.getSeats().size());
+			putInt(seatHold.getSeatHoldId());
+			putString(email);
+			//TicketClock millis, the same instant whatever the host's time zone
+			putLong(seatHold.getExpirationMillis());
+			putSeats(seatHold.getSeats());
+			end();
+		}
+		
+		void reserve(Reservation reservation) {
+			byte[] code = reservation.getConfirmationCode().getBytes(StandardCharsets.UTF_8);
+			byte[] email = reservation.getEmail().getBytes(StandardCharsets.UTF_8);
+			begin(RESERVATION, 1 + 2 + code.length + 4 + 2 + email.length + 4 + 4 * reservation.getSeats().size());
+			putString(code);
+			putInt(reservation.getSeatHoldId());
+			putString(email);
+			putSeats(reservation.getSeats());
+			end();
+		}
+		
+		void release(String confirmationCode, SeatSet seats) {
+			byte[] code = confirmationCode.getBytes(StandardCharsets.UTF_8);
+			begin(RELEASE, 1 + 2 + code.length + 4 + 4 * seats.size());
+			putString(code);
+			putSeats(seats);
+			end();
+		}
+		
+		void expire(SeatHold seatHold) {
+			byte[] email = seatHold.getEmail().getBytes(StandardCharsets.UTF_8);
+			begin(EXPIRE, 1 + 4 + 2 + email.length);
+			putInt(seatHold.getSeatHoldId());
+			putString(email);
+			end();
+		}
+	}
+	
+	private final Path directory;
+	private final boolean syncOnCommit;
+	private final long snapshotIntervalMillis;
+	
+	//guards the channel and generation, always taken before the monitor on this
+	private final Object io = new Object();
+	private FileChannel channel;
+	private int generation;
+	
+	//guarded by this
+	private RecordBuffer batch = new RecordBuffer();
+	private RecordBuffer spare = new RecordBuffer();
+	private long appendedSeq = 0;
+	private long durableSeq = 0;
+	private IOException failure = null;
+	private boolean closed = false;
+	
+	private final Thread flusher;
+	
+	private SeatJournal(Path directory, boolean syncOnCommit, long snapshotIntervalMillis, int generation) throws IOException {
+		this.directory = directory;
+		this.syncOnCommit = syncOnCommit;
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+		this.generation = generation;
+		this.channel = openJournal(generation);
+		
+		this.flusher = new Thread(this::flushLoop, "seat-journal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Opens the journal in directory, creating it if needed. Call replay before appending anything.
+	 *
+	 * @param syncOnCommit
+	 *            if true commit() waits until the record has been fsynced
+	 * @param snapshotIntervalMillis
+	 *            how often a TicketServiceImpl using the journal writes a snapshot, 0 for never
+	 */
+	public static SeatJournal open(Path directory, boolean syncOnCommit, long snapshotIntervalMillis) throws IOException {
+		Files.createDirectories(directory);
+		int latest = Math.max(latestGeneration(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX), 
+				latestGeneration(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX));
+		//never append after a possibly torn tail, every run starts a new journal file
+		return new SeatJournal(directory, syncOnCommit, snapshotIntervalMillis, latest + 1);
+	}
+	
+	public long snapshotIntervalMillis() {
+		return snapshotIntervalMillis;
+	}
+	
+	private FileChannel openJournal(int generation) throws IOException {
+		return FileChannel.open(directory.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+	
+	private static List<Integer> generations(Path directory, String prefix, String suffix) throws IOException {
+		List<Integer> generations = new ArrayList<Integer>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.map(file -> file.getFileName().toString())
+				.filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+				.forEach(name -> generations.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()))));
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+	
+	private static int latestGeneration(Path directory, String prefix, String suffix) throws IOException {
+		List<Integer> generations = generations(directory, prefix, suffix);
+		return generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+	}
+	
+	/**
+	 * Replays the latest snapshot and every journal written since, oldest first
+	 */
+	public void replay(Replay replay) throws IOException {
+		int snapshot = latestGeneration(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		if(snapshot > 0) 
+			replayFile(directory.resolve(SNAPSHOT_PREFIX + snapshot + SNAPSHOT_SUFFIX), replay);
+		
+		for(int journal : generations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+			if(journal >= snapshot && journal < generation) 
+				replayFile(directory.resolve(JOURNAL_PREFIX + journal + JOURNAL_SUFFIX), replay);
+		}
+	}
+	
+	private static void replayFile(Path file, Replay replay) throws IOException {
+		ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file));
+		CRC32 crc = new CRC32();
+		while(records.remaining() >= 4) {
+			int bodyLength = records.getInt();
+			if(bodyLength <= 0 || bodyLength + 4 > records.remaining()) return;
+			
+			ByteBuffer body = records.slice();
+			body.limit(bodyLength);
+			crc.reset();
+			crc.update(body.duplicate());
+			records.position(records.position() + bodyLength);
+			if((int) crc.getValue() != records.getInt()) return;
+			
+			switch(body.get()) {
+			case HOLD: 
+				replay.hold(body.getInt(), getString(body), body.getLong(), getSeats(body)); 
+				break;
+			case RESERVATION: 
+				replay.reserve(getString(body), body.getInt(), getString(body), getSeats(body)); 
+				break;
+			case EXPIRE: 
+				replay.expire(body.getInt(), getString(body)); 
+				break;
+			case RELEASE: 
+				replay.release(getString(body), getSeats(body)); 
+				break;
+			default: 
+				return;
+			}
+		}
+	}
+	
+	private static String getString(ByteBuffer body) {
+		byte[] bytes = new byte[body.getShort() & 0xffff];
+		body.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static SeatSet getSeats(ByteBuffer body) {
+		int[] seats = new int[body.getInt()];
+		for(int i = 0; i < seats.length; i++) seats[i] = body.getInt();
+		return SeatSet.of(seats);
+	}
+	
+	/**
+	 * Appends a new hold
+	 * @return the sequence number to pass to commit
+	 * @throws UncheckedIOException
+	 *             if an earlier write failed or the journal is closed, nothing is appended
+	 */
+	public synchronized long hold(SeatHold seatHold) {
+		checkWritable();
+		batch.hold(seatHold);
+		return appended();
+	}
+	
+	/**
+	 * Appends the reservation of a hold
+	 * @return the sequence number to pass to commit
+	 * @throws UncheckedIOException
+	 *             if an earlier write failed or the journal is closed, nothing is appended
+	 */
+	public synchronized long reserve(Reservation reservation) {
+		checkWritable();
+		batch.reserve(reservation);
+		return appended();
+	}
+	
+	/**
+	 * Appends the expiry of a hold
+	 * @return the sequence number to pass to commit
+	 * @throws UncheckedIOException
+	 *             if an earlier write failed or the journal is closed, nothing is appended
+	 */
+	public synchronized long expire(SeatHold seatHold) {
+		checkWritable();
+		batch.expire(seatHold);
+		return appended();
+	}
+	
+	/**
+	 * Appends the release of some or all of a reservation's seats
+	 * @return the sequence number to pass to commit
+	 * @throws UncheckedIOException
+	 *             if an earlier write failed or the journal is closed, nothing is appended
+	 */
+	public synchronized long release(String confirmationCode, SeatSet seats) {
+		checkWritable();
+		batch.release(confirmationCode, seats);
+		return appended();
+	}
+	
+	//holding the monitor on this
+	private void checkWritable() {
+		if(failure != null) throw new UncheckedIOException("The journal failed to write", failure);
+		//the flusher has stopped, anything appended now would never be written
+		if(closed) throw new UncheckedIOException(new IOException("The journal is closed"));
+	}
+	
+	private long appended() {
+		appendedSeq++;
+		notifyAll();
+		return appendedSeq;
+	}
+	
+	/**
+	 * Waits until the record with sequence number seq, and every one before it, is on disk. 
+	 * Returns straight away if the journal isn't syncing on commit, unless a write has already failed.
+	 */
+	public void commit(long seq) throws IOException {
+		synchronized(this) {
+			//a record appended before a failed write may never reach the disk, even without syncOnCommit
+			if(failure != null && durableSeq < seq) throw failure;
+			if(!syncOnCommit) return;
+			while(durableSeq < seq && failure == null) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for the journal", e);
+				}
+			}
+			if(durableSeq < seq) throw failure;
+		}
+	}
+	
+	private void flushLoop() {
+		while(true) {
+			synchronized(this) {
+				while(appendedSeq == durableSeq && !closed && failure == null) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+				if(failure != null || (closed && appendedSeq == durableSeq)) return;
+			}
+			try {
+				flush();
+			} catch(IOException e) {
+				synchronized(this) {
+					failure = e;
+					//nothing appended from here on can be written, don't hold on to it
+					batch = new RecordBuffer();
+					spare = new RecordBuffer();
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	//writes and fsyncs everything appended so far
+	private void flush() throws IOException {
+		synchronized(io) {
+			RecordBuffer toWrite;
+			long seq;
+			synchronized(this) {
+				if(batch.isEmpty()) return;
+				toWrite = batch;
+				batch = spare;
+				spare = toWrite;
+				seq = appendedSeq;
+			}
+			toWrite.writeTo(channel);
+			channel.force(false);
+			synchronized(this) {
+				durableSeq = seq;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Flushes the current journal and starts a new one. The caller must make sure nothing is
+	 * appended while the state for the next snapshot is captured.
+	 *
+	 * @return the generation of the new journal, to pass to writeSnapshot
+	 */
+	public int rotate() throws IOException {
+		synchronized(io) {
+			flush();
+			channel.close();
+			generation++;
+			channel = openJournal(generation);
+			return generation;
+		}
+	}
+	
+	/**
+	 * Writes the snapshot for a generation returned by rotate, then deletes the journals and 
+	 * snapshots it replaces
+	 */
+	public void writeSnapshot(int snapshotGeneration, Collection<SeatHold> holds, Collection<Reservation> reservations) throws IOException {
+		Path snapshot = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX);
+		Path temp = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration + ".tmp");
+		
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			RecordBuffer records = new RecordBuffer();
+			for(Reservation reservation : reservations) {
+				records.reserve(reservation);
+				if(records.size() > 1024 * 1024) records.writeTo(out);
+			}
+			for(SeatHold seatHold : holds) {
+				records.hold(seatHold);
+				if(records.size() > 1024 * 1024) records.writeTo(out);
+			}
+			records.writeTo(out);
+			out.force(true);
+		}
+		Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		
+		for(int journal : generations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+			if(journal < snapshotGeneration) Files.deleteIfExists(directory.resolve(JOURNAL_PREFIX + journal + JOURNAL_SUFFIX));
+		}
+		for(int older : generations(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			if(older < snapshotGeneration) Files.deleteIfExists(directory.resolve(SNAPSHOT_PREFIX + older + SNAPSHOT_SUFFIX));
+		}
+	}
+	
+	/**
+	 * Flushes anything still pending and closes the journal
+	 *
+	 * @throws IOException
+	 *             if anything appended couldn't be written, now or by an earlier flush
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failed;
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized(io) {
+			synchronized(this) {
+				failed = failure;
+			}
+			try {
+				if(failed == null) flush();
+			} finally {
+				channel.close();
+			}
+		}
+		if(failed != null) throw failed;
+	}
+}
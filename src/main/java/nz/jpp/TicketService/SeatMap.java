@@ -0,0 +1,84 @@
+package nz.jpp.TicketService;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * The live seat map behind SeatMapSnapshot, kept by TicketServiceImpl as seats are held, reserved
+ * and released. It is copy-on-write by row: a snapshot takes the current row arrays as they are
+ * and marks them shared, and the next change to a shared row copies it first. A change only waits
+ * for a snapshot to copy the row references, never for the allocator, and snapshots never wait
+ * for the allocator either.
+ *
+ * Changes lock only the rows they touch, so changes to different rows don't wait for each other,
+ * the same way the allocators stripe their rows. They share the read lock of snapshotLock, a
+ * snapshot takes its write lock so it never sees a change half made.
+ */
+final class SeatMap {
+
+	private final int rows;
+	private final int columns;
+	private final long[][] rowStates;
+	private final long[] rowVersions;
+	//rows a snapshot also has, copied before they are changed
+	private final boolean[] shared;
+	//a change to a row holds its lock
+	private final Object[] rowLocks;
+	private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+	private final AtomicLong version = new AtomicLong();
+	//the snapshot of the current version, if one has been taken, only used under the write lock
+	private SeatMapSnapshot latest;
+
+	SeatMap(SeatScoringModel model) {
+		this.rows = model.rows();
+		this.columns = model.columns();
+		this.rowStates = new long[rows][SeatMapSnapshot.wordsFor(columns)];
+		this.rowVersions = new long[rows];
+		this.shared = new boolean[rows];
+		this.rowLocks = new Object[rows];
+		for(int row = 0; row < rows; row++) {
+			rowLocks[row] = new Object();
+			for(int column = 0; column < columns; column++) {
+				if(!model.isSeat(row + 1, column + 1)) SeatMapSnapshot.setState(rowStates[row], column, SeatMapSnapshot.State.NO_SEAT);
+			}
+		}
+	}
+
+	void set(SeatSet seats, SeatMapSnapshot.State state) {
+		if(seats.isEmpty()) return;
+		int[] seatIds = SeatSet.sortedSeats(seats);
+		snapshotLock.readLock().lock();
+		try {
+			long changed = version.incrementAndGet();
+			for(int i = 0; i < seatIds.length; ) {
+				int row = SeatId.row(seatIds[i]) - 1;
+				synchronized(rowLocks[row]) {
+					if(shared[row]) {
+						rowStates[row] = rowStates[row].clone();
+						shared[row] = false;
+					}
+					for(; i < seatIds.length && SeatId.row(seatIds[i]) - 1 == row; i++)
+						SeatMapSnapshot.setState(rowStates[row], SeatId.seat(seatIds[i]) - 1, state);
+					//a change that took its version later may have got to the row first
+					rowVersions[row] = Math.max(rowVersions[row], changed);
+				}
+			}
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	SeatMapSnapshot snapshot() {
+		snapshotLock.writeLock().lock();
+		try {
+			if(latest == null || latest.version() != version.get()) {
+				latest = new SeatMapSnapshot(version.get(), rows, columns, rowStates.clone(), rowVersions.clone());
+				Arrays.fill(shared, true);
+			}
+			return latest;
+		} finally {
+			snapshotLock.writeLock().unlock();
+		}
+	}
+}
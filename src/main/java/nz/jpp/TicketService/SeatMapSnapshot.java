@@ -0,0 +1,159 @@
+package nz.jpp.TicketService;
+
+import java.nio.ByteBuffer;
+
+/*
+ * An immutable picture of every seat in a venue at one version: free, held, reserved, or not a
+ * seat at all. Each row is 2 bits per seat packed into longs. Snapshots share the rows that didn't
+ * change between them, so taking one copies an array of row references and nothing else.
+ *
+ * A snapshot serializes to a compact ByteBuffer, either whole or as a delta holding only the rows
+ * that changed after an earlier version. A client that polls keeps its last snapshot and applies
+ * the deltas it is sent:
+ *
+ *   byte format, long version, long since (-1 for a whole snapshot), short rows, short columns,
+ *   int row count, then for each row its index from 0 and its packed longs
+ */
+public final class SeatMapSnapshot {
+
+	public enum State { FREE, HELD, RESERVED, NO_SEAT }
+
+	private static final State[] STATES = State.values();
+	private static final byte FORMAT = 1;
+	private static final int HEADER_BYTES = 1 + 8 + 8 + 2 + 2 + 4;
+
+	private final long version;
+	private final int rows;
+	private final int columns;
+	//shared with the SeatMap that made them and other snapshots, never written once a snapshot has them
+	private final long[][] rowStates;
+	//the version each row last changed at
+	private final long[] rowVersions;
+
+	SeatMapSnapshot(long version, int rows, int columns, long[][] rowStates, long[] rowVersions) {
+		this.version = version;
+		this.rows = rows;
+		this.columns = columns;
+		this.rowStates = rowStates;
+		this.rowVersions = rowVersions;
+	}
+
+	static int wordsFor(int columns) {
+		return (columns + 31) >>> 5;
+	}
+
+	static State state(long[] row, int column) {
+		return STATES[(int) (row[column >>> 5] >>> ((column & 31) << 1)) & 3];
+	}
+
+	static void setState(long[] row, int column, State state) {
+		int shift = (column & 31) << 1;
+		row[column >>> 5] = (row[column >>> 5] & ~(3L << shift)) | ((long) state.ordinal() << shift);
+	}
+
+	public long version() { return version; }
+	public int rows() { return rows; }
+	public int columns() { return columns; }
+
+	/**
+	 * @return the state of a seat, rows and seats numbered from 1
+	 */
+	public State state(int row, int seat) {
+		return state(rowStates[row - 1], seat - 1);
+	}
+
+	public State state(int seatId) {
+		return state(SeatId.row(seatId), SeatId.seat(seatId));
+	}
+
+	public int count(State state) {
+		int count = 0;
+		for(long[] row : rowStates) {
+			for(int column = 0; column < columns; column++) {
+				if(state(row, column) == state) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The longest run of free seats together in a row, rows numbered from 1. The largest party the row can still seat
+	 * shows how fragmented it is.
+	 */
+	public int longestFreeRun(int row) {
+		int longest = 0;
+		int run = 0;
+		for(int column = 0; column < columns; column++) {
+			run = state(rowStates[row - 1], column) == State.FREE ? run + 1 : 0;
+			longest = Math.max(longest, run);
+		}
+		return longest;
+	}
+	
+	/**
+	 * The whole snapshot, for a client that has nothing yet
+	 */
+	public ByteBuffer toByteBuffer() {
+		return deltaSince(-1);
+	}
+
+	/**
+	 * The rows that changed after sinceVersion, to be applied to a snapshot of that version or later
+	 */
+	public ByteBuffer deltaSince(long sinceVersion) {
+		int changed = 0;
+		for(long rowVersion : rowVersions) {
+			if(rowVersion > sinceVersion) changed++;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + changed * (2 + 8 * wordsFor(columns)));
+		buffer.put(FORMAT).putLong(version).putLong(sinceVersion).putShort((short) rows).putShort((short) columns).putInt(changed);
+		for(int row = 0; row < rows; row++) {
+			if(rowVersions[row] <= sinceVersion) continue;
+			buffer.putShort((short) row);
+			for(long word : rowStates[row]) buffer.putLong(word);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads a snapshot written by toByteBuffer
+	 */
+	public static SeatMapSnapshot fromByteBuffer(ByteBuffer buffer) {
+		long since = buffer.getLong(buffer.position() + 9);
+		if(since != -1) throw new IllegalArgumentException("A delta since version " + since + " needs a snapshot to apply it to");
+		int rows = buffer.getShort(buffer.position() + 17);
+		int columns = buffer.getShort(buffer.position() + 19);
+		return new SeatMapSnapshot(-1, rows, columns, new long[rows][], new long[rows]).apply(buffer);
+	}
+
+	/**
+	 * The snapshot after the changes in a delta from deltaSince. Rows the delta doesn't have are shared with this snapshot.
+	 * A delta no newer than this snapshot changes nothing and this snapshot is returned.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the delta is for a different venue or misses changes made after this snapshot
+	 */
+	public SeatMapSnapshot apply(ByteBuffer delta) {
+		byte format = delta.get();
+		if(format != FORMAT) throw new IllegalArgumentException("Unknown seat map format " + format);
+		long deltaVersion = delta.getLong();
+		long since = delta.getLong();
+		if(delta.getShort() != rows || delta.getShort() != columns) throw new IllegalArgumentException("The delta is for a different venue");
+		if(since > version)
+			throw new IllegalArgumentException("A delta since version " + since + " can't be applied to version " + version);
+		if(deltaVersion <= version) return this;
+
+		long[][] newStates = rowStates.clone();
+		long[] newVersions = rowVersions.clone();
+		int changed = delta.getInt();
+		for(int i = 0; i < changed; i++) {
+			int row = delta.getShort();
+			long[] words = new long[wordsFor(columns)];
+			for(int word = 0; word < words.length; word++) words[word] = delta.getLong();
+			newStates[row] = words;
+			newVersions[row] = deltaVersion;
+		}
+		return new SeatMapSnapshot(deltaVersion, rows, columns, newStates, newVersions);
+	}
+}
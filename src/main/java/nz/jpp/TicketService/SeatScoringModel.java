@@ -0,0 +1,257 @@
+package nz.jpp.TicketService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * How much every seat in a venue is worth, as one flat double[] in row-major order, plus the price
+ * tier of each seat. Positions that aren't seats (aisles, pillars, the sound desk) score NaN and
+ * are never handed out. Allocators read scores straight out of the array, nothing is computed per
+ * hold. Allocators only hand out blocks that score above zero, so give sellable seats positive scores.
+ *
+ * Models come from frontAndCenter, or from a venue file:
+ *  - CSV, one line per row from the front, one cell per seat: a score, optionally followed by
+ *    :tier, or an empty cell or - for no seat. Blank lines and lines starting with # are skipped.
+ *  - binary, as written by write: the magic number, a version byte of 1, rows, columns, the scores
+ *    as doubles and then the tiers.
+ *
+ * Scores are doubles so generated ones keep their precision: frontAndCenter's row term reaches
+ * hundreds in a large venue, where a float can't tell the center seats of a row apart.
+ */
+public final class SeatScoringModel {
+
+	public static final int MAX_TIER = 63;
+
+	private static final int MAGIC = 0x53454154; //SEAT
+	private static final byte VERSION = 1;
+
+	private final int rows;
+	private final int columns;
+	private final double[] scores;
+	private final byte[] tiers;
+	//worked out the first time an allocator needs them and shared by every allocator selling the venue
+	private volatile WindowScores windowScores;
+
+	private SeatScoringModel(int rows, int columns, double[] scores, byte[] tiers) {
+		SeatId.checkVenue(rows, columns);
+		if(scores.length != rows * columns || tiers.length != rows * columns)
+			throw new IllegalArgumentException("A " + rows + "x" + columns + " venue needs " + rows * columns + " scores and tiers");
+		for(byte tier : tiers) {
+			if(tier < 0 || tier > MAX_TIER) throw new IllegalArgumentException("Price tiers go from 0 to " + MAX_TIER + ", not " + tier);
+		}
+		this.rows = rows;
+		this.columns = columns;
+		this.scores = scores;
+		this.tiers = tiers;
+	}
+
+	/**
+	 * @param scores
+	 *            row-major, NaN where there is no seat
+	 * @param tiers
+	 *            row-major price tiers from 0 to MAX_TIER, or null to put every seat in tier 0
+	 */
+	public static SeatScoringModel of(int rows, int columns, double[] scores, byte[] tiers) {
+		return new SeatScoringModel(rows, columns, scores.clone(), tiers == null ? new byte[scores.length] : tiers.clone());
+	}
+
+	/**
+	 * The original front-and-center scoring: (rows - row) * 0.2 for being close to the front plus a
+	 * parabola over the columns that peaks in the center, with every seat in tier 0
+	 */
+	public static SeatScoringModel frontAndCenter(int rows, int columns) {
+		SeatId.checkVenue(rows, columns);
+		double[] columnRanks = new double[columns];
+		for(int column = 1; column <= columns; column++)
+			columnRanks[column - 1] = - Math.pow(column / (columns/2.0 + 0.5) - 1, 2) + 0.8;
+
+		double[] scores = new double[rows * columns];
+		for(int row = 1; row <= rows; row++) {
+			for(int column = 1; column <= columns; column++)
+				scores[(row - 1) * columns + column - 1] = (rows - row) * 0.2 + columnRanks[column - 1];
+		}
+		return new SeatScoringModel(rows, columns, scores, new byte[rows * columns]);
+	}
+
+	/**
+	 * Loads a venue file, CSV if the name ends in .csv and binary otherwise
+	 */
+	public static SeatScoringModel load(Path file) throws IOException {
+		if(file.getFileName().toString().toLowerCase().endsWith(".csv")) {
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				return readCsv(reader);
+			}
+		}
+		try (InputStream in = Files.newInputStream(file)) {
+			return read(in);
+		}
+	}
+
+	public static SeatScoringModel readCsv(Reader reader) throws IOException {
+		BufferedReader lines = new BufferedReader(reader);
+		ArrayList<String[]> rowCells = new ArrayList<String[]>();
+		int columns = 0;
+		for(String line = lines.readLine(); line != null; line = lines.readLine()) {
+			if(line.trim().isEmpty() || line.startsWith("#")) continue;
+			String[] cells = line.split(",", -1);
+			rowCells.add(cells);
+			columns = Math.max(columns, cells.length);
+		}
+
+		int rows = rowCells.size();
+		SeatId.checkVenue(rows, columns);
+		double[] scores = new double[rows * columns];
+		byte[] tiers = new byte[rows * columns];
+		Arrays.fill(scores, Double.NaN);
+		for(int row = 0; row < rows; row++) {
+			String[] cells = rowCells.get(row);
+			for(int column = 0; column < cells.length; column++) {
+				String cell = cells[column].trim();
+				if(cell.isEmpty() || cell.equals("-")) continue;
+
+				int tierAt = cell.indexOf(':');
+				int tier = 0;
+				try {
+					scores[row * columns + column] = Double.parseDouble(tierAt < 0 ? cell : cell.substring(0, tierAt));
+					if(tierAt >= 0) tier = Integer.parseInt(cell.substring(tierAt + 1).trim());
+				} catch(NumberFormatException e) {
+					throw new IOException("Bad seat \"" + cell + "\" at row " + (row + 1) + " seat " + (column + 1), e);
+				}
+				//checked before it is narrowed to a byte, where 300 would pass as 44
+				if(tier < 0 || tier > MAX_TIER) throw new IOException("Bad price tier " + tier + " at row " + (row + 1) + " seat " + (column + 1));
+				tiers[row * columns + column] = (byte) tier;
+			}
+		}
+		return new SeatScoringModel(rows, columns, scores, tiers);
+	}
+
+	public static SeatScoringModel read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if(data.readInt() != MAGIC) throw new IOException("Not a seat scoring model");
+		byte version = data.readByte();
+		if(version != VERSION) throw new IOException("Unknown seat scoring model version " + version);
+
+		int rows = data.readInt();
+		int columns = data.readInt();
+		SeatId.checkVenue(rows, columns);
+		double[] scores = new double[rows * columns];
+		for(int i = 0; i < scores.length; i++) scores[i] = data.readDouble();
+		byte[] tiers = new byte[rows * columns];
+		data.readFully(tiers);
+		return new SeatScoringModel(rows, columns, scores, tiers);
+	}
+
+	/**
+	 * Writes the model in the binary venue format
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeByte(VERSION);
+		data.writeInt(rows);
+		data.writeInt(columns);
+		for(double score : scores) data.writeDouble(score);
+		data.write(tiers);
+		data.flush();
+	}
+
+	public static long tierMask(int... tiers) {
+		long mask = 0;
+		for(int tier : tiers) {
+			if(tier < 0 || tier > MAX_TIER) throw new IllegalArgumentException("Price tiers go from 0 to " + MAX_TIER + ", not " + tier);
+			mask |= 1L << tier;
+		}
+		return mask;
+	}
+
+	/**
+	 * The same venue with only the seats in the given price tiers. Tiers don't share seats, so each
+	 * tier (or set of tiers) can be sold by its own allocator.
+	 */
+	public SeatScoringModel forTiers(long tierMask) {
+		double[] tierScores = scores.clone();
+		for(int i = 0; i < tierScores.length; i++) {
+			if((tierMask & (1L << tiers[i])) == 0) tierScores[i] = Double.NaN;
+		}
+		return new SeatScoringModel(rows, columns, tierScores, tiers);
+	}
+
+	/**
+	 * Rows firstRow to lastRow, numbered from 1, as a venue of their own, e.g. to sell a block of rows as a section
+	 * of a SectionedSeatAllocator. The seats keep their scores and tiers
+	 */
+	public SeatScoringModel rows(int firstRow, int lastRow) {
+		if(firstRow < 1 || lastRow > rows || firstRow > lastRow)
+			throw new IllegalArgumentException("No rows " + firstRow + " to " + lastRow + " in a venue of " + rows);
+		int from = (firstRow - 1) * columns;
+		int to = lastRow * columns;
+		return new SeatScoringModel(lastRow - firstRow + 1, columns, Arrays.copyOfRange(scores, from, to), Arrays.copyOfRange(tiers, from, to));
+	}
+
+	public int rows() { return rows; }
+	public int columns() { return columns; }
+
+	/**
+	 * @return the score of a seat, rows and seats numbered from 1, or NaN if there is no seat there
+	 */
+	public double score(int row, int seat) {
+		return scores[(row - 1) * columns + seat - 1];
+	}
+
+	public boolean isSeat(int row, int seat) {
+		return !Double.isNaN(score(row, seat));
+	}
+
+	public int tier(int row, int seat) {
+		return tiers[(row - 1) * columns + seat - 1];
+	}
+
+	/**
+	 * @return the number of seats in a row, rows numbered from 1
+	 */
+	public int seats(int row) {
+		int seats = 0;
+		for(int i = (row - 1) * columns; i < row * columns; i++) {
+			if(!Double.isNaN(scores[i])) seats++;
+		}
+		return seats;
+	}
+
+	WindowScores windowScores() {
+		WindowScores current = windowScores;
+		if(current == null) {
+			//two threads may both work them out, they get the same answer
+			current = new WindowScores(this);
+			windowScores = current;
+		}
+		return current;
+	}
+
+	//the model's own array, for allocators to read without copying
+	double[] scores() {
+		return scores;
+	}
+
+	/*
+	 * The free seat bitmap of a row before anyone has been seated, rows numbered from 0
+	 */
+	long[] seatRow(int row) {
+		long[] words = new long[SeatBitmaps.wordsFor(columns)];
+		for(int column = 0; column < columns; column++) {
+			if(!Double.isNaN(scores[row * columns + column])) SeatBitmaps.set(words, column);
+		}
+		return words;
+	}
+}
@@ -0,0 +1,132 @@
+package nz.jpp.TicketService;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/*
+ * An immutable set of seat numbers backed by a sorted int[]. Allocators hand these out for
+ * holds and they are kept as is by SeatHold and the reservations, so a hold doesn't box
+ * seat numbers or copy sets along the way. It is also a Set<Integer> for code that wants one,
+ * but the int based methods avoid boxing.
+ */
+public final class SeatSet extends AbstractSet<Integer> {
+	
+	public static final SeatSet EMPTY = new SeatSet(new int[0]);
+	
+	private final int[] seats;
+	
+	private SeatSet(int[] seats) {
+		this.seats = seats;
+	}
+	
+	public static SeatSet of(int... seats) {
+		if(seats.length == 0) return EMPTY;
+		int[] sorted = seats.clone();
+		Arrays.sort(sorted);
+		int distinct = 1;
+		for(int i = 1; i < sorted.length; i++) {
+			if(sorted[i] != sorted[distinct - 1]) sorted[distinct++] = sorted[i];
+		}
+		return new SeatSet(distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct));
+	}
+	
+	public static SeatSet copyOf(Collection<Integer> seats) {
+		if(seats instanceof SeatSet) return (SeatSet) seats;
+		if(seats == null || seats.isEmpty()) return EMPTY;
+		return of(seats.stream().mapToInt(Integer::intValue).toArray());
+	}
+	
+	/*
+	 * The count seat numbers starting at first, e.g. a block of seats in one row
+	 */
+	static SeatSet range(int first, int count) {
+		if(count <= 0) return EMPTY;
+		int[] seats = new int[count];
+		for(int i = 0; i < count; i++) seats[i] = first + i;
+		return new SeatSet(seats);
+	}
+	
+	/*
+	 * The seats in ascending order without copying when the collection is already a SeatSet. 
+	 * The returned array must not be modified.
+	 */
+	static int[] sortedSeats(Collection<Integer> seats) {
+		return copyOf(seats).seats;
+	}
+	
+	@Override
+	public int size() {
+		return seats.length;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return seats.length == 0;
+	}
+	
+	public boolean contains(int seat) {
+		return Arrays.binarySearch(seats, seat) >= 0;
+	}
+	
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+	
+	/**
+	 * @return the seat at index, in ascending seat order
+	 */
+	public int get(int index) {
+		return seats[index];
+	}
+	
+	public int[] toIntArray() {
+		return seats.clone();
+	}
+	
+	public void forEachSeat(IntConsumer action) {
+		for(int seat : seats) action.accept(seat);
+	}
+	
+	public IntStream seatStream() {
+		return Arrays.stream(seats);
+	}
+	
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int next = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return next < seats.length;
+			}
+			
+			@Override
+			public Integer next() {
+				if(next >= seats.length) throw new NoSuchElementException();
+				return seats[next++];
+			}
+		};
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if(o == this) return true;
+		if(o instanceof SeatSet) return Arrays.equals(seats, ((SeatSet) o).seats);
+		return super.equals(o);
+	}
+	
+	@Override
+	public int hashCode() {
+		//the same as AbstractSet, the sum of the Integer hash codes, without boxing
+		int hash = 0;
+		for(int seat : seats) hash += seat;
+		return hash;
+	}
+}
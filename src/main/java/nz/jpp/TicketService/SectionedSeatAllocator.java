@@ -0,0 +1,240 @@
+package nz.jpp.TicketService;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/*
+ * A stadium split into sections, each with its own SeatScoringModel and its own
+ * BitmapFrontAndCenterSeatAllocator, so holds in different sections don't share any state or
+ * locks. Seat ids carry the section (see SeatId), numbered from 0 in the order the models are given.
+ * Scores are compared across sections, so give the sections' models one scale.
+ *
+ * getSeats looks for the best block in every section at once on a fork-join pool, nothing is
+ * taken while looking. Sections are handed out best first, and every section's search starts
+ * from the best score any section has found so far, so sections that can't beat it give up
+ * straight away. The winners are merged by score and the winning block is taken from its
+ * section. If another caller took one of its seats in the meantime the search runs again. With
+ * enough cores a hold costs about one section's search rather than the whole venue's.
+ *
+ * A group that doesn't fit together anywhere is split within one section, trying the sections
+ * in order. The venue has no single SeatScoringModel, so a TicketServiceImpl selling it has no seat map.
+ */
+public class SectionedSeatAllocator implements SeatAllocator {
+
+	private final BitmapFrontAndCenterSeatAllocator[] sections;
+	private final ForkJoinPool pool;
+	//section indexes by falling bound, per group size
+	private final AtomicReferenceArray<int[]> sectionOrders;
+
+	public SectionedSeatAllocator(List<SeatScoringModel> sections) {
+		this(sections, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param sections
+	 *            the model of each section, up to SeatId.MAX_SECTION + 1 of them
+	 * @param pool
+	 *            where the sections are searched
+	 */
+	public SectionedSeatAllocator(List<SeatScoringModel> sections, ForkJoinPool pool) {
+		if(sections.isEmpty() || sections.size() > SeatId.MAX_SECTION + 1)
+			throw new IllegalArgumentException("Venues can have 1 to " + (SeatId.MAX_SECTION + 1) + " sections, not " + sections.size());
+		this.sections = new BitmapFrontAndCenterSeatAllocator[sections.size()];
+		for(int section = 0; section < this.sections.length; section++)
+			this.sections[section] = new BitmapFrontAndCenterSeatAllocator(sections.get(section));
+		this.pool = pool;
+		int widest = 0;
+		for(SeatScoringModel section : sections) widest = Math.max(widest, section.columns());
+		this.sectionOrders = new AtomicReferenceArray<int[]>(widest + 1);
+	}
+
+	public int sections() {
+		return sections.length;
+	}
+
+	public SeatScoringModel getScoringModel(int section) {
+		return sections[section].getScoringModel();
+	}
+
+	/**
+	 * @return null, every section has its own model
+	 */
+	@Override
+	public SeatScoringModel getScoringModel() {
+		return null;
+	}
+
+	@Override
+	public int numSeatsAvailable() {
+		int available = 0;
+		for(BitmapFrontAndCenterSeatAllocator section : sections) available += section.numSeatsAvailable();
+		return available;
+	}
+
+	/**
+	 * The seats available in the row of every section that has one
+	 */
+	@Override
+	public int numSeatsAvailable(int row) {
+		int available = 0;
+		for(BitmapFrontAndCenterSeatAllocator section : sections) {
+			if(row <= section.getScoringModel().rows()) available += section.numSeatsAvailable(row);
+		}
+		return available;
+	}
+
+	private static final class Candidate {
+		final int section;
+		final long block;
+		final double score;
+
+		Candidate(int section, long block, double score) {
+			this.section = section;
+			this.block = block;
+			this.score = score;
+		}
+	}
+
+	private int[] sectionOrder(int numSeats) {
+		int[] order = sectionOrders.get(numSeats);
+		if(order != null) return order;
+		order = IntStream.range(0, sections.length).boxed()
+				.sorted((x, y) -> Double.compare(sections[y].bound(numSeats), sections[x].bound(numSeats)))
+				.mapToInt(Integer::intValue).toArray();
+		sectionOrders.compareAndSet(numSeats, null, order);
+		return sectionOrders.get(numSeats);
+	}
+
+	/*
+	 * Finds the best block in the sections at order[from] to order[to - 1], halving the range until each task has
+	 * one section. best holds the bits of the best score found so far by any task, positive doubles compare the
+	 * same way as their bits
+	 */
+	private final class Search extends RecursiveTask<Candidate> {
+		private static final long serialVersionUID = 1L;
+
+		private final int numSeats;
+		private final int[] order;
+		private final int from;
+		private final int to;
+		private final AtomicLong best;
+
+		Search(int numSeats, int[] order, int from, int to, AtomicLong best) {
+			this.numSeats = numSeats;
+			this.order = order;
+			this.from = from;
+			this.to = to;
+			this.best = best;
+		}
+
+		@Override
+		protected Candidate compute() {
+			if(to - from == 1) return search(order[from], numSeats, best);
+			int middle = (from + to) >>> 1;
+			Search right = new Search(numSeats, order, middle, to, best);
+			right.fork();
+			Candidate left = new Search(numSeats, order, from, middle, best).compute();
+			return better(left, right.join());
+		}
+	}
+
+	private Candidate search(int section, int numSeats, AtomicLong best) {
+		double floor = Double.longBitsToDouble(best.get());
+		if(sections[section].bound(numSeats) <= floor + WindowScores.SCORE_EPSILON) return null;
+
+		long block = sections[section].bestBlock(numSeats, floor);
+		if(block < 0) return null;
+		double score = sections[section].blockScore(block, numSeats);
+		best.accumulateAndGet(Double.doubleToLongBits(score), Math::max);
+		return new Candidate(section, block, score);
+	}
+
+	private static Candidate better(Candidate left, Candidate right) {
+		if(left == null) return right;
+		if(right == null) return left;
+		return right.score > left.score + WindowScores.SCORE_EPSILON ? right : left;
+	}
+
+	@Override
+	public SeatSet getSeats(int numSeats) {
+		if(numSeats <= 0 || numSeats >= sectionOrders.length()) return SeatSet.EMPTY;
+		int[] order = sectionOrder(numSeats);
+		while(true) {
+			//blocks have to score above zero, like in a single allocator
+			AtomicLong bestScore = new AtomicLong(Double.doubleToLongBits(0));
+			Candidate best = null;
+			if(pool.getParallelism() > 1 && order.length > 1) {
+				best = pool.invoke(new Search(numSeats, order, 0, order.length, bestScore));
+			} else {
+				//handing the search to one other thread only adds a thread switch
+				for(int section : order) best = better(best, search(section, numSeats, bestScore));
+			}
+			if(best == null) return SeatSet.EMPTY;
+			SeatSet seats = sections[best.section].takeBlock(best.block, numSeats, best.section);
+			if(!seats.isEmpty()) return seats;
+			//someone took some of the block since we looked, look again
+		}
+	}
+
+	@Override
+	public SeatSet getSplitSeats(int numSeats, long maxSearchNanos) {
+		SeatSet seats = getSeats(numSeats);
+		if(!seats.isEmpty()) return seats;
+
+		for(int section = 0; section < sections.length; section++) {
+			seats = sections[section].getSplitSeats(numSeats, maxSearchNanos);
+			if(!seats.isEmpty()) return inSection(seats, section);
+		}
+		return SeatSet.EMPTY;
+	}
+
+	private static SeatSet inSection(SeatSet seats, int section) {
+		int[] seatIds = new int[seats.size()];
+		for(int i = 0; i < seatIds.length; i++) seatIds[i] = SeatId.encode(section, SeatId.row(seats.get(i)), SeatId.seat(seats.get(i)));
+		return SeatSet.of(seatIds);
+	}
+
+	@Override
+	public void returnSeat(Integer seat) {
+		int section = SeatId.section(seat);
+		if(section < sections.length) sections[section].returnSeat(seat);
+	}
+
+	@Override
+	public void returnSeats(Collection<Integer> seats) {
+		int[] seatIds = SeatSet.sortedSeats(seats);
+		for(int i = 0; i < seatIds.length; ) {
+			int section = SeatId.section(seatIds[i]);
+			int end = i;
+			while(end < seatIds.length && SeatId.section(seatIds[end]) == section) end++;
+			if(section < sections.length) sections[section].returnSeats(SeatSet.of(Arrays.copyOfRange(seatIds, i, end)));
+			i = end;
+		}
+	}
+
+	/**
+	 * Each section takes its seats on its own. If one can't, the seats already taken in the others are returned,
+	 * and other callers may have seen them taken for that moment
+	 */
+	@Override
+	public boolean takeSeats(Collection<Integer> seats) {
+		int[] seatIds = SeatSet.sortedSeats(seats);
+		for(int i = 0; i < seatIds.length; ) {
+			int section = SeatId.section(seatIds[i]);
+			int end = i;
+			while(end < seatIds.length && SeatId.section(seatIds[end]) == section) end++;
+			if(section >= sections.length || !sections[section].takeSeats(SeatSet.of(Arrays.copyOfRange(seatIds, i, end)))) {
+				returnSeats(SeatSet.of(Arrays.copyOfRange(seatIds, 0, i)));
+				return false;
+			}
+			i = end;
+		}
+		return true;
+	}
+}
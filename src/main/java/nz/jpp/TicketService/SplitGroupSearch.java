@@ -0,0 +1,213 @@
+package nz.jpp.TicketService;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/*
+ * Finds seats for a party that doesn't fit together in any row, as a few blocks in different rows.
+ * Fewer blocks always win. For the same number of blocks, blocks in rows one behind the other
+ * win over rows further apart, and after that the seat scores decide. Only one block
+ * is taken from each row.
+ *
+ * The best block of every size in a row is worked out once from the row's free runs. A DP over
+ * those then picks the block sizes, over each span of k adjacent rows for the stacked plans and
+ * over every row for the rest. The search gives up after maxSearchNanos with the best plan found
+ * so far, which may be none.
+ */
+final class SplitGroupSearch {
+
+	static final int DEFAULT_MAX_BLOCKS = 4;
+	static final long DEFAULT_MAX_SEARCH_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	private final WindowScores scores;
+	private final int numSeats;
+	private final int maxBlocks;
+	//compared by difference, so a maxSearchNanos of Long.MAX_VALUE never runs out
+	private final long deadline;
+	//blockScores[row][size] is the score of the best block of size seats in the row, blockColumns[row][size] its first column or -1
+	private final double[][] blockScores;
+	private final int[][] blockColumns;
+	//the best score of every blocks and seats pair over all rows, filled in by anyRows
+	private double[][] anyRowsBest;
+
+	private SplitGroupSearch(WindowScores scores, int numSeats, int maxBlocks, long maxSearchNanos) {
+		this.scores = scores;
+		this.numSeats = numSeats;
+		this.maxBlocks = maxBlocks;
+		this.deadline = System.nanoTime() + maxSearchNanos;
+		this.blockScores = new double[scores.rows][];
+		this.blockColumns = new int[scores.rows][];
+	}
+
+	/**
+	 * @param rowSeats
+	 *            the free seat bitmap of a row, by row index. It is only read before the next row is asked for
+	 * @return the seats of the best plan, or an empty set. The seats are not taken
+	 */
+	static SeatSet search(WindowScores scores, IntFunction<long[]> rowSeats, int numSeats, int maxBlocks, long maxSearchNanos) {
+		if(numSeats < 2 || maxBlocks < 2) return SeatSet.EMPTY;
+		//one block per row, so a bigger party can't fit, and the DP tables are sized by numSeats
+		if(numSeats > (long)Math.min(maxBlocks, scores.rows) * scores.columns) return SeatSet.EMPTY;
+		return new SplitGroupSearch(scores, numSeats, maxBlocks, maxSearchNanos).search(rowSeats);
+	}
+
+	private boolean outOfTime(int row) {
+		return (row & 63) == 63 && System.nanoTime() - deadline > 0;
+	}
+
+	private SeatSet search(IntFunction<long[]> rowSeats) {
+		long free = 0;
+		for(int row = 0; row < scores.rows; row++) {
+			if(outOfTime(row)) return SeatSet.EMPTY;
+			long[] seats = rowSeats.apply(row);
+			for(long word : seats) free += Long.bitCount(word);
+			findBlocks(row, seats);
+		}
+		if(free < numSeats) return SeatSet.EMPTY;
+
+		int[] sizes = new int[scores.rows];
+		int[][][] choices = null;
+		for(int blocks = 2; blocks <= maxBlocks; blocks++) {
+			int first = bestStack(blocks, sizes);
+			if(first >= 0) return seats(sizes, first, blocks);
+			if(System.nanoTime() - deadline > 0) return SeatSet.EMPTY;
+
+			if(choices == null) {
+				choices = anyRows();
+				if(choices == null) return SeatSet.EMPTY;
+			}
+			if(pickRows(choices, blocks, sizes)) return seats(sizes, 0, scores.rows);
+		}
+		return SeatSet.EMPTY;
+	}
+
+	private void findBlocks(int row, long[] seats) {
+		int largest = Math.min(numSeats - 1, scores.columns);
+		double[] rowScores = new double[largest + 1];
+		int[] rowColumns = new int[largest + 1];
+		Arrays.fill(rowScores, Double.NEGATIVE_INFINITY);
+		Arrays.fill(rowColumns, -1);
+
+		int start = SeatBitmaps.nextSetBit(seats, 0, scores.columns);
+		while(start < scores.columns) {
+			int end = SeatBitmaps.nextClearBit(seats, start, scores.columns);
+			for(int size = 1; size <= Math.min(end - start, largest); size++) {
+				int column = scores.bestWindowInRun(row, start, end, size);
+				double score = scores.score(row, column, size);
+				if(score > rowScores[size] + WindowScores.SCORE_EPSILON) {
+					rowScores[size] = score;
+					rowColumns[size] = column;
+				}
+			}
+			start = SeatBitmaps.nextSetBit(seats, end, scores.columns);
+		}
+		blockScores[row] = rowScores;
+		blockColumns[row] = rowColumns;
+	}
+
+	/*
+	 * Finds the best span of blocks adjacent rows with one block each, fills sizes from sizes[first]
+	 * and returns the first row, or -1 if there is none
+	 */
+	private int bestStack(int blocks, int[] sizes) {
+		double[][] best = new double[blocks + 1][numSeats + 1];
+		int[][] choice = new int[blocks + 1][numSeats + 1];
+		double bestScore = Double.NEGATIVE_INFINITY;
+		int bestFirst = -1;
+
+		for(int first = 0; first + blocks <= scores.rows; first++) {
+			if(outOfTime(first)) break;
+			double score = stack(first, blocks, best, choice);
+			if(score > bestScore + WindowScores.SCORE_EPSILON) {
+				bestScore = score;
+				bestFirst = first;
+			}
+		}
+		if(bestFirst < 0) return -1;
+
+		stack(bestFirst, blocks, best, choice);
+		for(int i = blocks, seats = numSeats; i > 0; i--) {
+			sizes[bestFirst + i - 1] = choice[i][seats];
+			seats -= choice[i][seats];
+		}
+		return bestFirst;
+	}
+
+	//best[i][seats] is the best score for seats seats in rows first to first + i - 1, choice[i][seats] the block size in the last of them
+	private double stack(int first, int blocks, double[][] best, int[][] choice) {
+		for(double[] row : best) Arrays.fill(row, Double.NEGATIVE_INFINITY);
+		best[0][0] = 0;
+		for(int i = 1; i <= blocks; i++) {
+			double[] rowScores = blockScores[first + i - 1];
+			for(int seats = i; seats <= numSeats; seats++) {
+				for(int size = 1; size < rowScores.length && size <= seats; size++) {
+					double score = best[i - 1][seats - size] + rowScores[size];
+					if(score > best[i][seats] + WindowScores.SCORE_EPSILON) {
+						best[i][seats] = score;
+						choice[i][seats] = size;
+					}
+				}
+			}
+		}
+		return best[blocks][numSeats];
+	}
+
+	/*
+	 * Knapsack over every row, at most one block per row. choices[row][blocks][seats] is the size of the
+	 * block row adds to the best plan of blocks blocks and seats seats, 0 if it didn't improve it. Returns
+	 * null if the search ran out of time
+	 */
+	private int[][][] anyRows() {
+		double[][] best = new double[maxBlocks + 1][numSeats + 1];
+		for(double[] row : best) Arrays.fill(row, Double.NEGATIVE_INFINITY);
+		best[0][0] = 0;
+
+		int[][][] choices = new int[scores.rows][maxBlocks + 1][numSeats + 1];
+		for(int row = 0; row < scores.rows; row++) {
+			if(outOfTime(row)) return null;
+			double[] rowScores = blockScores[row];
+			//downwards, so every row is used at most once
+			for(int blocks = maxBlocks; blocks >= 1; blocks--) {
+				for(int seats = numSeats; seats >= blocks; seats--) {
+					for(int size = 1; size < rowScores.length && size <= seats; size++) {
+						double score = best[blocks - 1][seats - size] + rowScores[size];
+						if(score > best[blocks][seats] + WindowScores.SCORE_EPSILON) {
+							best[blocks][seats] = score;
+							choices[row][blocks][seats] = size;
+						}
+					}
+				}
+			}
+		}
+		anyRowsBest = best;
+		return choices;
+	}
+
+	private boolean pickRows(int[][][] choices, int blocks, int[] sizes) {
+		if(anyRowsBest[blocks][numSeats] == Double.NEGATIVE_INFINITY) return false;
+
+		//walk back from the last row, each block was added by the last row that improved its plan
+		Arrays.fill(sizes, 0);
+		int seats = numSeats;
+		for(int row = scores.rows - 1; row >= 0 && blocks > 0; row--) {
+			int size = choices[row][blocks][seats];
+			if(size == 0) continue;
+			sizes[row] = size;
+			blocks--;
+			seats -= size;
+		}
+		return true;
+	}
+
+	private SeatSet seats(int[] sizes, int first, int count) {
+		int[] seats = new int[numSeats];
+		int next = 0;
+		for(int row = first; row < first + count; row++) {
+			int column = blockColumns[row][sizes[row]];
+			for(int seat = 0; seat < sizes[row]; seat++)
+				seats[next++] = SeatId.encode(row + 1, column + seat + 1);
+		}
+		return SeatSet.of(seats);
+	}
+}
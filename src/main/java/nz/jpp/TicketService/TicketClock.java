@@ -0,0 +1,35 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Where holds and the expiry wheel get the time from, in milliseconds since the epoch. Time
+ * never goes backwards, even if the wall clock is set back while the service is running.
+ *
+ * SYSTEM reads System.nanoTime every time. A coarse clock reads one volatile field that a
+ * daemon thread refreshes every few milliseconds, for hosts that read the time on every call.
+ * A VirtualClock only moves when it is told to, for tests and simulations.
+ */
+public interface TicketClock {
+
+	TicketClock SYSTEM = new TicketClock() {
+		private final long startMillis = System.currentTimeMillis();
+		private final long startNanos = System.nanoTime();
+
+		@Override
+		public long millis() {
+			return startMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		}
+	};
+
+	long millis();
+
+	/**
+	 * A clock that is up to resolutionMillis behind SYSTEM and costs a field read. Every coarse clock is refreshed by
+	 * one shared daemon thread, and asking again for the same resolution returns the same clock.
+	 */
+	static TicketClock coarse(long resolutionMillis) {
+		if(resolutionMillis <= 0) throw new IllegalArgumentException("resolutionMillis must be positive");
+		return CoarseClock.forResolution(resolutionMillis);
+	}
+}
@@ -1,5 +1,7 @@
 package nz.jpp.TicketService;
 
+import java.util.Set;
+
 public interface TicketService {
 	public static final String SEAT_HOLD_ID_EXPIRED = "SeatHoldIdExpired";
 	public static final String SEAT_HOLD_ID_NOT_FOUND = "SeatHoldIdNotFound";
@@ -34,4 +36,25 @@ public interface TicketService {
 	 * @return a reservation confirmation code
 	 */
 	String reserveSeats(int seatHoldId, String customerEmail);
+	
+	/**
+	 * Cancel a reservation and put its seats back on sale
+	 *
+	 * @param confirmationCode
+	 *            the code reserveSeats returned
+	 * @return false if there is no such reservation
+	 */
+	boolean cancelReservation(String confirmationCode);
+	
+	/**
+	 * Put some of a reservation's seats back on sale, e.g. for a partial refund. Releasing every seat
+	 * cancels the reservation.
+	 *
+	 * @param confirmationCode
+	 *            the code reserveSeats returned
+	 * @param seats
+	 *            the seats to release, all of which must belong to the reservation
+	 * @return false if there is no such reservation or it doesn't have all of the seats, then nothing is released
+	 */
+	boolean releaseSeats(String confirmationCode, Set<Integer> seats);
 }
\ No newline at end of file
@@ -1,54 +1,427 @@
 package nz.jpp.TicketService;
 
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class TicketServiceImpl implements TicketService {
+public class TicketServiceImpl implements TicketService, AutoCloseable {
 	
 	//we keep track of reserved seats and held seat, seatAllocator is responsible for tracking available seats
-	private final ConcurrentHashMap<Integer,Set<Integer>> reservedSeats = new ConcurrentHashMap<Integer,Set<Integer>>();
+	private final ReservationStore reservations = new ReservationStore();
 	private final ConcurrentHashMap<SeatHoldKey,SeatHold> heldSeats = new ConcurrentHashMap<SeatHoldKey,SeatHold>();
+	//the same holds by customer, with their idempotency keys and quotas
+	private final CustomerHolds customerHolds = new CustomerHolds();
 	private final SeatAllocator seatAllocator;
 	private final int seatHoldTTLinSeconds;
 	
+	private final HoldExpiryWheel expiryWheel;
+	//the wheel's clock, so holds expire by the same time the wheel keeps
+	private final TicketClock clock;
+	//only close the wheel if we created it, a shared wheel belongs to whoever passed it in
+	private final boolean ownsExpiryWheel;
+	
+	//null when holds and reservations only live in memory
+	private final SeatJournal journal;
+	//changes to the maps and their journal records happen under the read lock, a snapshot takes the write lock 
+	//so it sees exactly the changes journaled before the journal it starts
+	private final ReentrantReadWriteLock journalLock = new ReentrantReadWriteLock();
+	//calls that change seats hold the read lock and fail once the service is closed, closing takes the write lock
+	//so no call is still part way through a closed service, and so does building the seat map or the customer index
+	private final ReentrantReadWriteLock openLock = new ReentrantReadWriteLock();
+	private volatile boolean closed = false;
+	
+	private volatile ReservationPipeline pipeline;
+	
+	//null until someone asks for the seat map, most services are never asked
+	private volatile SeatMap seatMap;
+	
+	//null unless someone wants them
+	private volatile TicketServiceMetrics metrics;
+	private volatile SeatChangeFeed changeFeed;
+	
 	public TicketServiceImpl(SeatAllocator seatAllocator, int seatHoldTTLinSeconds) {
+		this(seatAllocator, seatHoldTTLinSeconds, new HoldExpiryWheel(), true, null);
+	}
+	
+	public TicketServiceImpl(SeatAllocator seatAllocator, int seatHoldTTLinSeconds, HoldExpiryWheel expiryWheel) {
+		this(seatAllocator, seatHoldTTLinSeconds, expiryWheel, false, null);
+	}
+	
+	/**
+	 * Restores the holds and reservations in journal into seatAllocator, which should have every seat available,
+	 * then journals every change from here on. The journal is not closed by this service. A periodic snapshot
+	 * that fails is counted in TicketServiceMetrics.snapshotFailures, passed to the expiry wheel's failure
+	 * handler and tried again next interval.
+	 */
+	public TicketServiceImpl(SeatAllocator seatAllocator, int seatHoldTTLinSeconds, SeatJournal journal) {
+		this(seatAllocator, seatHoldTTLinSeconds, new HoldExpiryWheel(), true, journal);
+	}
+	
+	public TicketServiceImpl(SeatAllocator seatAllocator, int seatHoldTTLinSeconds, HoldExpiryWheel expiryWheel, SeatJournal journal) {
+		this(seatAllocator, seatHoldTTLinSeconds, expiryWheel, false, journal);
+	}
+	
+	private TicketServiceImpl(SeatAllocator seatAllocator, int seatHoldTTLinSeconds, HoldExpiryWheel expiryWheel, boolean ownsExpiryWheel, SeatJournal journal) {
 		this.seatAllocator = seatAllocator;
 		this.seatHoldTTLinSeconds = seatHoldTTLinSeconds;
+		this.expiryWheel = expiryWheel;
+		this.ownsExpiryWheel = ownsExpiryWheel;
+		this.clock = expiryWheel.clock();
+		this.journal = journal;
+		
+		if(journal != null) {
+			recover();
+			scheduleSnapshot();
+		}
+	}
+	
+	private void recover() {
+		try {
+			journal.replay(new SeatJournal.Replay() {
+				@Override
+				public void hold(int seatHoldId, String email, long expirationMillis, SeatSet seats) {
+					SeatHold seatHold = SeatHold.restore(seatHoldId, email, expirationMillis, seats);
+					if(heldSeats.containsKey(seatHold.getKey())) return;
+					if(seatAllocator.takeSeats(seats)) heldSeats.put(seatHold.getKey(), seatHold);
+				}
 				
-		runSeatHoldSweeper();
+				@Override
+				public void reserve(String confirmationCode, int seatHoldId, String email, SeatSet seats) {
+					if(reservations.contains(confirmationCode)) return;
+					//reserving a hold keeps its seats, a reservation from a snapshot has no hold and takes them directly
+					if(heldSeats.remove(new SeatHoldKey(seatHoldId, email)) != null || seatAllocator.takeSeats(seats)) 
+						reservations.restore(new Reservation(confirmationCode, seatHoldId, email, seats));
+				}
+				
+				@Override
+				public void expire(int seatHoldId, String email) {
+					SeatHold seatHold = heldSeats.remove(new SeatHoldKey(seatHoldId, email));
+					if(seatHold != null) seatAllocator.returnSeats(seatHold.getSeats());
+				}
+				
+				@Override
+				public void release(String confirmationCode, SeatSet seats) {
+					Reservation reservation = reservations.get(confirmationCode);
+					if(reservation == null) return;
+					if(reservation.getSeats().size() == seats.size()) reservations.remove(reservation);
+					else reservations.replace(reservation, reservation.without(seats));
+					seatAllocator.returnSeats(seats);
+				}
+			});
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		
+		long now = clock.millis();
+		for(SeatHold seatHold : heldSeats.values()) 
+			scheduleExpiry(seatHold, Math.max(0, seatHold.getExpirationMillis() - now));
 	}
-
-	public void runSeatHoldSweeper() {
-		ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-
-		Runnable task = () -> {
-//			System.err.println("Purging expired seat holds");
-			LocalDateTime now = LocalDateTime.now();
-			ArrayList<Integer> expiredSeats = new ArrayList<Integer>();
+	
+	private void scheduleSnapshot() {
+		if(journal.snapshotIntervalMillis() <= 0) return;
+		expiryWheel.schedule(() -> {
+			//open while it runs, so whoever closes the service can close the journal straight after
+			openLock.readLock().lock();
 			try {
-				heldSeats.values().forEach(seatHold -> {
-					if(seatHold.isExpired(now) && heldSeats.remove(seatHold.getKey(), seatHold)) {
-//						System.err.format("Expiring %d seats with id %d for customer %s\n", seatHold.getSeats().size(), seatHold.getSeatHoldId(), seatHold.getEmail());
-						expiredSeats.addAll(seatHold.getSeats());
-					}
-					
-				});
+				if(closed) return;
+				//a failed snapshot is tried again next interval, it can't be left to grow the journal forever
+				scheduleSnapshot();
+				snapshot();
+			} catch(IOException e) {
+				TicketServiceMetrics metrics = this.metrics;
+				if(metrics != null) metrics.snapshotFailed();
+				//on to the wheel's failure handler
+				throw new UncheckedIOException(e);
 			} finally {
-				//place in a finally block to make sure we don't lose any seats that have been removed from the hold list
-				if (!expiredSeats.isEmpty()) 
-					expiredSeats.forEach(seat -> seatAllocator.returnSeat(seat));
+				openLock.readLock().unlock();
 			}
-		};
-
-		int initialDelay = seatHoldTTLinSeconds/2;
-		int period = seatHoldTTLinSeconds/2;
-		executor.scheduleAtFixedRate(task, initialDelay, period, TimeUnit.SECONDS);
-
+		}, journal.snapshotIntervalMillis());
+	}
+	
+	/**
+	 * Writes every current hold and reservation to a snapshot so the journal before it can be deleted
+	 */
+	public void snapshot() throws IOException {
+		int generation;
+		ArrayList<SeatHold> holds;
+		ArrayList<Reservation> reserved;
+		journalLock.writeLock().lock();
+		try {
+			generation = journal.rotate();
+			holds = new ArrayList<SeatHold>(heldSeats.values());
+			reserved = new ArrayList<Reservation>(reservations.all());
+		} finally {
+			journalLock.writeLock().unlock();
+		}
+		journal.writeSnapshot(generation, holds, reserved);
+	}
+	
+	//changes to heldSeats and reservations and their journal records go between these
+	private void lockChanges() {
+		if(journal == null) return;
+		TicketServiceMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		journalLock.readLock().lock();
+		if(metrics != null) metrics.lockWait().recordSince(start);
+	}
+	
+	private void unlockChanges() {
+		if(journal != null) journalLock.readLock().unlock();
+	}
+	
+	//also publishes the change, after the seat map has it so a subscriber resyncing from a snapshot misses nothing
+	private void updateSeatMap(SeatSet seats, SeatMapSnapshot.State state) {
+		SeatMap seatMap = this.seatMap;
+		if(seatMap != null) seatMap.set(seats, state);
+		SeatChangeFeed changeFeed = this.changeFeed;
+		if(changeFeed != null) changeFeed.publish(seats, state);
+	}
+	
+	//returns the journal sequence number to commit. Journaled first, so a journal that has failed leaves no hold behind
+	private long putHold(SeatHold seatHold) {
+		long seq = journal == null ? 0 : journal.hold(seatHold);
+		heldSeats.put(seatHold.getKey(), seatHold);
+		updateSeatMap(seatHold.getSeats(), SeatMapSnapshot.State.HELD);
+		return seq;
+	}
+	
+	//returns the new reservation, or null if another thread expired or reserved the hold first. The journal
+	//sequence number to commit goes in seq. Journaled while the hold's bin is locked and before anything
+	//changes, so a journal that has failed leaves the hold as it was
+	private Reservation putReservation(SeatHoldKey key, SeatHold seatHold, long[] seq) {
+		Reservation[] reservation = new Reservation[1];
+		heldSeats.computeIfPresent(key, (k, current) -> {
+			if(current != seatHold) return current;
+			reservation[0] = reservations.add(seatHold, added -> seq[0] = journal(added));
+			return null;
+		});
+		if(reservation[0] == null) return null;
+		customerHolds.remove(seatHold);
+		updateSeatMap(seatHold.getSeats(), SeatMapSnapshot.State.RESERVED);
+		return reservation[0];
+	}
+	
+	//returns the journal sequence number to commit
+	private long journal(Reservation reservation) {
+		return journal == null ? 0 : journal.reserve(reservation);
+	}
+	
+	private void commit(long seq) {
+		if(journal == null) return;
+		try {
+			journal.commit(seq);
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void scheduleExpiry(SeatHold seatHold, long delayMillis) {
+		expiryWheel.schedule(() -> expireSeatHold(seatHold), delayMillis);
+	}
+	
+	//called by the expiry wheel once the hold's TTL has passed. If the hold was reserved in the meantime it is no longer in heldSeats
+	private void expireSeatHold(SeatHold seatHold) {
+		if(seatHold.isLive(clock.millis())) {
+			//the wheel ran a little early, check again next tick
+			scheduleExpiry(seatHold, 1);
+			return;
+		}
+		TicketServiceMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		boolean expired = false;
+		UncheckedIOException journalFailure = null;
+		//like any other change, but it still runs once the service is closed
+		openLock.readLock().lock();
+		try {
+			lockChanges();
+			try {
+				expired = heldSeats.remove(seatHold.getKey(), seatHold);
+				if(expired && journal != null) journal.expire(seatHold);
+			} catch(UncheckedIOException e) {
+				//the seats still go back, the wheel's failure handler hears about the journal below
+				journalFailure = e;
+			} finally {
+				unlockChanges();
+			}
+			//nobody waits on an expiry, if it is lost the hold just expires again after a restart
+			if(expired) {
+				//freed in the seat map before the allocator can hand the seats out again
+				updateSeatMap(seatHold.getSeats(), SeatMapSnapshot.State.FREE);
+				seatAllocator.returnSeats(seatHold.getSeats());
+				customerHolds.remove(seatHold);
+			}
+		} finally {
+			openLock.readLock().unlock();
+		}
+		if(expired && metrics != null) {
+			metrics.expired();
+			metrics.expiryLatency().recordSince(start);
+		}
+		if(journalFailure != null) throw journalFailure;
+	}
+	
+	/**
+	 * Stops expiring seat holds and the async writer. Only a wheel created by this service is shut down.
+	 * Waits for calls already changing seats, holding, reserving and releasing seats throw IllegalStateException from then on.
+	 */
+	@Override
+	public void close() {
+		openLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			openLock.writeLock().unlock();
+		}
+		ReservationPipeline current;
+		synchronized(this) {
+			current = pipeline;
+		}
+		if(current != null) current.close();
+		if(ownsExpiryWheel) expiryWheel.close();
+	}
+	
+	/*
+	 * Closes the service unless a call is using it, it has holds, or it has reservations and reservationsJournaled is
+	 * false. A caller that still has the service is turned away from then on, see TicketServiceRegistry.evictIdle
+	 */
+	boolean closeIfUnused(boolean reservationsJournaled) {
+		if(!openLock.writeLock().tryLock()) return false;
+		try {
+			if(closed || !heldSeats.isEmpty() || (!reservationsJournaled && reservations.size() > 0)) return false;
+			closed = true;
+		} finally {
+			openLock.writeLock().unlock();
+		}
+		close();
+		return true;
+	}
+	
+	private void enter() {
+		//every call waits here, so lockWait has something to show even without a journal
+		TicketServiceMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		openLock.readLock().lock();
+		if(metrics != null) metrics.lockWait().recordSince(start);
+		if(closed) {
+			openLock.readLock().unlock();
+			throw new IllegalStateException("TicketService is closed");
+		}
+	}
+	
+	private void exit() {
+		openLock.readLock().unlock();
+	}
+	
+	/**
+	 * Starts recording latencies and counts into metrics, or stops recording if it is null
+	 */
+	public void setMetrics(TicketServiceMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public TicketServiceMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Starts publishing every seat held, reserved or freed to changeFeed, or stops if it is null. Give each service
+	 * its own feed, seat ids don't say which service they came from
+	 */
+	public void setChangeFeed(SeatChangeFeed changeFeed) {
+		this.changeFeed = changeFeed;
+	}
+	
+	public SeatChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+	
+	/**
+	 * Limits every customer to maxHolds holds of maxSeats seats between them at a time. A hold that would go over
+	 * either gets null from findAndHoldSeats without the allocator being searched. Holds already made are kept.
+	 */
+	public void setCustomerQuota(int maxHolds, int maxSeats) {
+		indexCustomers();
+		customerHolds.setQuota(maxHolds, maxSeats);
+	}
+	
+	/**
+	 * Holds are only indexed by customer once this or setCustomerQuota is first called, that call indexes the holds
+	 * already made.
+	 *
+	 * @return a customer's seat holds that are neither reserved nor expired yet
+	 */
+	public List<SeatHold> getSeatHolds(String customerEmail) {
+		indexCustomers();
+		return customerHolds.holds(customerEmail);
+	}
+	
+	//like the seat map, built from the holds while no call is changing them
+	private void indexCustomers() {
+		if(customerHolds.isIndexingAll()) return;
+		openLock.writeLock().lock();
+		try {
+			customerHolds.indexAll(heldSeats.values());
+		} finally {
+			openLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the reservation with a confirmation code from reserveSeats, or null if there is none
+	 */
+	public Reservation getReservation(String confirmationCode) {
+		return reservations.get(confirmationCode);
+	}
+	
+	/**
+	 * @return every reservation made for a customer
+	 */
+	public List<Reservation> getReservations(String customerEmail) {
+		return reservations.forEmail(customerEmail);
+	}
+	
+	/**
+	 * @return the number of seat holds that are neither reserved nor expired yet
+	 */
+	public int numSeatHolds() {
+		return heldSeats.size();
+	}
+	
+	/**
+	 * A consistent picture of which seats are free, held and reserved. Taking one doesn't wait for
+	 * the allocator, and snapshots of the same version are the same object. The service only keeps
+	 * the seat map, 2 bits a seat, from the first call on.
+	 *
+	 * @throws IllegalStateException
+	 *             if the allocator has no SeatScoringModel to say what the venue looks like
+	 */
+	public SeatMapSnapshot seatMap() {
+		SeatMap current = seatMap;
+		return (current == null ? startSeatMap() : current).snapshot();
+	}
+	
+	//built from the holds and reservations while no call is changing them, every change after it updates it
+	private SeatMap startSeatMap() {
+		SeatScoringModel model = seatAllocator.getScoringModel();
+		if(model == null) throw new IllegalStateException("The seat allocator doesn't describe its venue");
+		openLock.writeLock().lock();
+		try {
+			if(seatMap == null) {
+				SeatMap map = new SeatMap(model);
+				for(SeatHold seatHold : heldSeats.values()) map.set(seatHold.getSeats(), SeatMapSnapshot.State.HELD);
+				for(Reservation reservation : reservations.all()) map.set(reservation.getSeats(), SeatMapSnapshot.State.RESERVED);
+				seatMap = map;
+			}
+			return seatMap;
+		} finally {
+			openLock.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -71,16 +444,107 @@ public class TicketServiceImpl implements TicketService {
 	 *         information or null if numSeats are not avilable together in the same row
 	 */
 	public SeatHold findAndHoldSeats(int numSeats, String customerEmail) {
-		Set<Integer> seats = seatAllocator.getSeats(numSeats);
-		if (seats == null || seats.isEmpty())
+		return findAndHoldSeats(numSeats, customerEmail, false);
+	}
+	
+	/**
+	 * Find and hold the best available seats for a customer
+	 *
+	 * @param numSeats
+	 *            the number of seats to find and hold
+	 * @param customerEmail
+	 *            unique identifier for the customer
+	 * @param allowSplit
+	 *            if true and numSeats are not available together in one row, hold them as a few blocks in 
+	 *            different rows instead (see SeatAllocator.getSplitSeats)
+	 * @return a SeatHold object identifying the specific seats and related
+	 *         information or null if the seats are not available
+	 */
+	public SeatHold findAndHoldSeats(int numSeats, String customerEmail, boolean allowSplit) {
+		return findAndHoldSeats(numSeats, customerEmail, allowSplit, null);
+	}
+	
+	/**
+	 * Find and hold the best available seats for a customer, once per idempotency key
+	 *
+	 * @param idempotencyKey
+	 *            chosen by the client, e.g. a UUID per purchase. While the hold made for a key is live, asking
+	 *            again with the same key returns that hold instead of holding more seats, so a client can safely
+	 *            retry after a timeout. null to always hold new seats
+	 * @return a SeatHold object identifying the specific seats and related
+	 *         information or null if the seats are not available or the customer is over their quota
+	 * @throws IllegalStateException
+	 *             if the service is closed
+	 */
+	public SeatHold findAndHoldSeats(int numSeats, String customerEmail, boolean allowSplit, String idempotencyKey) {
+		enter();
+		try {
+			return hold(numSeats, customerEmail, allowSplit, idempotencyKey);
+		} finally {
+			exit();
+		}
+	}
+	
+	private SeatHold hold(int numSeats, String customerEmail, boolean allowSplit, String idempotencyKey) {
+		TicketServiceMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		CustomerHolds.Attempt attempt = customerHolds.begin(customerEmail, numSeats, idempotencyKey, clock.millis());
+		if(attempt.earlier != null) {
+			if(metrics != null) metrics.deduplicated();
+			return attempt.earlier.join();
+		}
+		if(attempt == CustomerHolds.Attempt.OVER_QUOTA) {
+			if(metrics != null) metrics.overQuota();
 			return null;
-					
-		SeatHold seatHold = new SeatHold(customerEmail, seatHoldTTLinSeconds, seats);
-		heldSeats.put(seatHold.getKey(), seatHold);
+		}
+		
+		//the attempt is always finished, a retry with the same key waits on it
+		SeatSet seats = null;
+		SeatHold seatHold = null;
+		long seq;
+		try {
+			seats = SeatSet.copyOf(allowSplit ? seatAllocator.getSplitSeats(numSeats) : seatAllocator.getSeats(numSeats));
+			if(metrics != null) {
+				metrics.getSeatsLatency().recordSince(start);
+				metrics.held(seats != null && !seats.isEmpty());
+			}
+			if (seats == null || seats.isEmpty()) {
+				customerHolds.failed(attempt, customerEmail, numSeats);
+				return null;
+			}
+			
+			seatHold = new SeatHold(customerEmail, seatHoldTTLinSeconds, seats, clock);
+			lockChanges();
+			try {
+				seq = putHold(seatHold);
+			} finally {
+				unlockChanges();
+			}
+		} catch(RuntimeException e) {
+			abandonHold(attempt, customerEmail, numSeats, seats, seatHold);
+			throw e;
+		}
+		customerHolds.held(attempt, seatHold, numSeats);
+		//scheduled before the commit, so a hold whose commit fails still gives its seats back
+		scheduleExpiry(seatHold, seatHoldTTLinSeconds * 1000L);
+		commit(seq);
+		if(metrics != null) metrics.findAndHoldSeatsLatency().recordSince(start);
 		return seatHold;
 	}
 
 	
+	//finishes the attempt of a hold that threw part way. Once the hold is put it is kept and expires like any other,
+	//before that its seats go back to the allocator
+	private void abandonHold(CustomerHolds.Attempt attempt, String email, int numSeats, SeatSet seats, SeatHold seatHold) {
+		if(seatHold != null && heldSeats.get(seatHold.getKey()) == seatHold) {
+			customerHolds.held(attempt, seatHold, numSeats);
+			scheduleExpiry(seatHold, seatHoldTTLinSeconds * 1000L);
+			return;
+		}
+		customerHolds.failed(attempt, email, numSeats);
+		if(seats != null && !seats.isEmpty()) seatAllocator.returnSeats(seats);
+	}
+	
 	/**
 	 * Commit seats held for a specific customer
 	 *
@@ -92,20 +556,266 @@ public class TicketServiceImpl implements TicketService {
 	 * @return a reservation confirmation code or SEAT_HOLD_ID_EXPIRED/SEAT_HOLD_ID_NOT_FOUND on error
 	 */
 	public String reserveSeats(int seatHoldId, String customerEmail) {
+		TicketServiceMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		String confirmation;
+		enter();
+		try {
+			confirmation = reserve(seatHoldId, customerEmail);
+		} finally {
+			exit();
+		}
+		if(metrics != null) {
+			metrics.reserveSeatsLatency().recordSince(start);
+			metrics.reserved(!SEAT_HOLD_ID_EXPIRED.equals(confirmation) && !SEAT_HOLD_ID_NOT_FOUND.equals(confirmation));
+		}
+		return confirmation;
+	}
+	
+	private String reserve(int seatHoldId, String customerEmail) {
+		if(customerEmail == null) return SEAT_HOLD_ID_NOT_FOUND;
 		SeatHoldKey key = new SeatHoldKey(seatHoldId, customerEmail);
+		SeatHold seatHold = heldSeats.get(key);
+		if(seatHold == null) return SEAT_HOLD_ID_NOT_FOUND;
+		
+		if(seatHold.isExpired(clock.millis()))
+			return SEAT_HOLD_ID_EXPIRED;
+		
+		Reservation reservation;
+		long[] seq = new long[1];
+		lockChanges();
+		try {
+			reservation = putReservation(key, seatHold, seq);
+		} finally {
+			unlockChanges();
+		}
+		if(reservation == null) return SEAT_HOLD_ID_EXPIRED;
+		commit(seq[0]);
+		
+		return reservation.getConfirmationCode();
+	}
+	
+	@Override
+	public boolean cancelReservation(String confirmationCode) {
+		return release(confirmationCode, null);
+	}
+	
+	@Override
+	public boolean releaseSeats(String confirmationCode, Set<Integer> seats) {
+		SeatSet released = SeatSet.copyOf(seats);
+		return !released.isEmpty() && release(confirmationCode, released);
+	}
+	
+	//releases seats, or every seat if null, from the reservation as it is now
+	private boolean release(String confirmationCode, SeatSet seats) {
+		enter();
 		try {
-			SeatHold seatHold = heldSeats.get(key); //may throw a NullPointerException!
+			return releaseFrom(confirmationCode, seats);
+		} finally {
+			exit();
+		}
+	}
+	
+	private boolean releaseFrom(String confirmationCode, SeatSet seats) {
+		while(true) {
+			Reservation reservation = reservations.get(confirmationCode);
+			if(reservation == null) return false;
+			SeatSet released = seats == null ? reservation.getSeats() : seats;
+			if(!reservation.getSeats().containsAll(released)) return false;
 			
-			//if the seatHold is expired or we failed to remove it (another thread removed it) throw an exception
-			if(seatHold.isExpired(LocalDateTime.now()) || !heldSeats.remove(key, seatHold))
-				return SEAT_HOLD_ID_EXPIRED;
-
-			reservedSeats.put(key.hashCode(), seatHold.getSeats());
+			long[] seq = new long[1];
+			boolean changed;
+			lockChanges();
+			try {
+				//journaled before the store changes, so a journal that has failed leaves the reservation as it was
+				changed = reservations.release(reservation, released.size() == reservation.getSeats().size() ? null : reservation.without(released),
+						() -> seq[0] = journal(confirmationCode, released));
+			} finally {
+				unlockChanges();
+			}
+			//another release got to the reservation first, look at it again
+			if(!changed) continue;
 			
-			return Integer.toHexString(key.hashCode());
-		} catch(NullPointerException e) {
-			return SEAT_HOLD_ID_NOT_FOUND;
+			//durable before anyone else can hold the seats, so the journal never has them resold before they were released
+			try {
+				commit(seq[0]);
+			} finally {
+				//the reservation is gone either way, and a journal that failed to commit takes no more holds
+				freeSeats(released);
+			}
+			return true;
+		}
+	}
+	
+	//returns the journal sequence number to commit
+	private long journal(String confirmationCode, SeatSet released) {
+		return journal == null ? 0 : journal.release(confirmationCode, released);
+	}
+	
+	private void freeSeats(SeatSet seats) {
+		updateSeatMap(seats, SeatMapSnapshot.State.FREE);
+		seatAllocator.returnSeats(seats);
+	}
+	
+	/**
+	 * Cancels many reservations at once, e.g. a block of comps going back on sale. The journal is 
+	 * committed once and the allocator gets every seat back in one call, rather than once per reservation.
+	 *
+	 * @return the number of reservations cancelled, codes that don't match a reservation are skipped
+	 */
+	public int cancelReservations(Collection<String> confirmationCodes) {
+		enter();
+		try {
+			return cancel(confirmationCodes);
+		} finally {
+			exit();
+		}
+	}
+	
+	private int cancel(Collection<String> confirmationCodes) {
+		ArrayList<SeatSet> released = new ArrayList<SeatSet>();
+		int seatCount = 0;
+		long[] seq = new long[1];
+		RuntimeException failure = null;
+		lockChanges();
+		try {
+			for(String confirmationCode : confirmationCodes) {
+				Reservation reservation = reservations.get(confirmationCode);
+				if(reservation == null || !reservations.release(reservation, null, () -> seq[0] = journal(confirmationCode, reservation.getSeats()))) continue;
+				released.add(reservation.getSeats());
+				seatCount += reservation.getSeats().size();
+			}
+		} catch(RuntimeException e) {
+			//the reservation that failed is left as it was, the ones before it are still released
+			failure = e;
+		} finally {
+			unlockChanges();
+		}
+		if(released.isEmpty()) {
+			if(failure != null) throw failure;
+			return 0;
+		}
+		
+		int[] seats = new int[seatCount];
+		int next = 0;
+		for(SeatSet reservationSeats : released) {
+			for(int i = 0; i < reservationSeats.size(); i++) seats[next++] = reservationSeats.get(i);
+		}
+		try {
+			commit(seq[0]);
+		} finally {
+			freeSeats(SeatSet.of(seats));
 		}
+		if(failure != null) throw failure;
+		return released.size();
 	}
 	
+	/**
+	 * Like findAndHoldSeats, but queued for the service's single writer, which holds seats for a whole batch
+	 * of callers at once. The future completes with null if numSeats are not available together.
+	 */
+	public CompletableFuture<SeatHold> findAndHoldSeatsAsync(int numSeats, String customerEmail) {
+		return pipeline().hold(numSeats, customerEmail);
+	}
+	
+	/**
+	 * Like reserveSeats, but queued for the service's single writer. Every reservation in a batch shares one
+	 * journal commit.
+	 */
+	public CompletableFuture<String> reserveSeatsAsync(int seatHoldId, String customerEmail) {
+		return pipeline().reserve(seatHoldId, customerEmail);
+	}
+	
+	//the writer thread is only started by the first async call, most services never need it
+	private ReservationPipeline pipeline() {
+		ReservationPipeline current = pipeline;
+		if(current != null) return current;
+		synchronized(this) {
+			if(pipeline == null) pipeline = new ReservationPipeline(ReservationPipeline.DEFAULT_CAPACITY, this::applyBatch);
+			return pipeline;
+		}
+	}
+	
+	//a batch that reaches a closed service fails every future in it
+	private void applyBatch(ArrayList<ReservationPipeline.Command> batch) {
+		enter();
+		try {
+			apply(batch);
+		} finally {
+			exit();
+		}
+	}
+	
+	private void apply(ArrayList<ReservationPipeline.Command> batch) {
+		long now = clock.millis();
+		long seq = 0;
+		int applied = 0;
+		RuntimeException failure = null;
+		TicketServiceMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : System.nanoTime();
+		//the allocators in this package synchronize on themselves, so the batch takes their lock once
+		synchronized(seatAllocator) {
+			if(metrics != null) metrics.lockWait().recordSince(start);
+			lockChanges();
+			try {
+				//a command that throws stops the batch, the ones before it are still committed and completed
+				for(; applied < batch.size(); applied++) {
+					ReservationPipeline.Command command = batch.get(applied);
+					seq = Math.max(seq, command.isHold() ? applyHold(command, now, metrics) : applyReserve(command, now, metrics));
+				}
+			} catch(RuntimeException e) {
+				failure = e;
+			} finally {
+				unlockChanges();
+			}
+		}
+		commit(seq);
+		for(int i = 0; i < applied; i++) batch.get(i).applied = true;
+		if(failure != null) throw failure;
+	}
+	
+	//returns the journal sequence number to commit, or 0
+	private long applyHold(ReservationPipeline.Command command, long now, TicketServiceMetrics metrics) {
+		CustomerHolds.Attempt attempt = customerHolds.begin(command.email, command.numSeats, null, now);
+		if(attempt == CustomerHolds.Attempt.OVER_QUOTA) {
+			if(metrics != null) metrics.overQuota();
+			return 0;
+		}
+		SeatSet seats = null;
+		SeatHold seatHold = null;
+		long seq;
+		try {
+			seats = SeatSet.copyOf(seatAllocator.getSeats(command.numSeats));
+			if(metrics != null) metrics.held(seats != null && !seats.isEmpty());
+			if(seats == null || seats.isEmpty()) {
+				customerHolds.failed(attempt, command.email, command.numSeats);
+				return 0;
+			}
+			seatHold = new SeatHold(command.email, seatHoldTTLinSeconds, seats, clock);
+			seq = putHold(seatHold);
+		} catch(RuntimeException e) {
+			abandonHold(attempt, command.email, command.numSeats, seats, seatHold);
+			throw e;
+		}
+		command.seatHold = seatHold;
+		customerHolds.held(attempt, seatHold, command.numSeats);
+		//scheduled as it is put, so if the batch fails later its holds still expire
+		scheduleExpiry(seatHold, seatHoldTTLinSeconds * 1000L);
+		return seq;
+	}
+	
+	//returns the journal sequence number to commit, or 0
+	private long applyReserve(ReservationPipeline.Command command, long now, TicketServiceMetrics metrics) {
+		SeatHoldKey key = new SeatHoldKey(command.seatHoldId, command.email);
+		SeatHold seatHold = heldSeats.get(key);
+		long[] seq = new long[1];
+		Reservation reservation = seatHold == null || seatHold.isExpired(now) ? null : putReservation(key, seatHold, seq);
+		if(metrics != null) metrics.reserved(reservation != null);
+		if(reservation == null) {
+			command.confirmation = seatHold == null ? SEAT_HOLD_ID_NOT_FOUND : SEAT_HOLD_ID_EXPIRED;
+			return 0;
+		}
+		command.confirmation = reservation.getConfirmationCode();
+		return seq[0];
+	}
 }
@@ -0,0 +1,116 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * What a TicketServiceImpl has been doing, for whoever wants to look in-process: latency histograms
+ * for the allocator's getSeats, findAndHoldSeats, reserveSeats, waiting for locks and expiring holds,
+ * and counters for holds, reservations, expiries, retried holds, holds over a customer's quota and
+ * failed journal snapshots. Everything is recorded without allocating or locking. One instance can
+ * be shared by several services to see them together.
+ *
+ * Fragmentation is read from the seat map instead, see SeatMapSnapshot.longestFreeRun.
+ */
+public final class TicketServiceMetrics {
+
+	private final LatencyHistogram getSeats = new LatencyHistogram();
+	private final LatencyHistogram findAndHoldSeats = new LatencyHistogram();
+	private final LatencyHistogram reserveSeats = new LatencyHistogram();
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+	private final LatencyHistogram expiry = new LatencyHistogram();
+
+	private final LongAdder holds = new LongAdder();
+	private final LongAdder holdsFailed = new LongAdder();
+	private final LongAdder reservations = new LongAdder();
+	private final LongAdder reservationsFailed = new LongAdder();
+	private final LongAdder expiries = new LongAdder();
+	private final LongAdder holdsDeduplicated = new LongAdder();
+	private final LongAdder holdsOverQuota = new LongAdder();
+	private final LongAdder snapshotFailures = new LongAdder();
+
+	/**
+	 * Time spent in the allocator finding seats, including waiting for its lock
+	 */
+	public LatencyHistogram getSeatsLatency() { return getSeats; }
+	public LatencyHistogram findAndHoldSeatsLatency() { return findAndHoldSeats; }
+	public LatencyHistogram reserveSeatsLatency() { return reserveSeats; }
+
+	/**
+	 * Time spent waiting for the service's own locks: the lock every call takes to check the service is open, the
+	 * journal lock and the allocator lock taken by async batches. A synchronous call waits for the allocator's lock
+	 * inside the allocator, so that wait is part of getSeatsLatency instead
+	 */
+	public LatencyHistogram lockWait() { return lockWait; }
+
+	/**
+	 * Time taken to expire a hold and give its seats back to the allocator
+	 */
+	public LatencyHistogram expiryLatency() { return expiry; }
+
+	public long holds() { return holds.sum(); }
+	public long holdsFailed() { return holdsFailed.sum(); }
+	public long reservations() { return reservations.sum(); }
+	public long reservationsFailed() { return reservationsFailed.sum(); }
+	public long expiries() { return expiries.sum(); }
+
+	/**
+	 * Holds asked for again with the same idempotency key, that got the first hold back
+	 */
+	public long holdsDeduplicated() { return holdsDeduplicated.sum(); }
+	public long holdsOverQuota() { return holdsOverQuota.sum(); }
+
+	/**
+	 * Periodic journal snapshots that failed, see TicketServiceImpl
+	 */
+	public long snapshotFailures() { return snapshotFailures.sum(); }
+
+	void held(boolean succeeded) {
+		(succeeded ? holds : holdsFailed).increment();
+	}
+
+	void reserved(boolean succeeded) {
+		(succeeded ? reservations : reservationsFailed).increment();
+	}
+
+	void expired() {
+		expiries.increment();
+	}
+
+	void deduplicated() {
+		holdsDeduplicated.increment();
+	}
+
+	void overQuota() {
+		holdsOverQuota.increment();
+	}
+
+	void snapshotFailed() {
+		snapshotFailures.increment();
+	}
+
+	public void reset() {
+		getSeats.reset();
+		findAndHoldSeats.reset();
+		reserveSeats.reset();
+		lockWait.reset();
+		expiry.reset();
+		holds.reset();
+		holdsFailed.reset();
+		reservations.reset();
+		reservationsFailed.reset();
+		expiries.reset();
+		holdsDeduplicated.reset();
+		holdsOverQuota.reset();
+		snapshotFailures.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "holds=" + holds() + " holdsFailed=" + holdsFailed() + " reservations=" + reservations()
+				+ " reservationsFailed=" + reservationsFailed() + " expiries=" + expiries()
+				+ " holdsDeduplicated=" + holdsDeduplicated() + " holdsOverQuota=" + holdsOverQuota()
+				+ " snapshotFailures=" + snapshotFailures()
+				+ "\ngetSeats " + getSeats + "\nfindAndHoldSeats " + findAndHoldSeats + "\nreserveSeats " + reserveSeats
+				+ "\nlockWait " + lockWait + "\nexpiry " + expiry;
+	}
+}
@@ -0,0 +1,212 @@
+package nz.jpp.TicketService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * Hosts the TicketServices for many events in one JVM. Every event's service is created the
+ * first time it is asked for, and they all share one expiry wheel and one pool of worker
+ * threads instead of each having their own threads. 
+ * 
+ * Events that haven't been used for idleTimeoutMillis and have no outstanding holds are
+ * dropped from memory. Hosts that want events with reservations dropped too pass a journal
+ * factory: each event then journals its holds and reservations, and the next get reloads them
+ * from its journal. Without one, events with reservations are never evicted. An evicted
+ * service is closed, so anyone still holding it can't sell seats the next get has again.
+ */
+public class TicketServiceRegistry implements AutoCloseable {
+	
+	/**
+	 * Opens the journal of an event, the same one every time the event is loaded
+	 */
+	public interface JournalFactory {
+		SeatJournal open(String eventId) throws IOException;
+	}
+	
+	private static class Event {
+		final TicketServiceImpl service;
+		//null when the event only lives in memory
+		final SeatJournal journal;
+		volatile long lastAccessNanos = System.nanoTime();
+		
+		Event(TicketServiceImpl service, SeatJournal journal) {
+			this.service = service;
+			this.journal = journal;
+		}
+	}
+	
+	private final ConcurrentHashMap<String,Event> events = new ConcurrentHashMap<String,Event>();
+	private final Function<String,SeatAllocator> allocatorFactory;
+	private final int seatHoldTTLinSeconds;
+	private final long idleTimeoutNanos;
+	private final JournalFactory journalFactory;
+	private final ExecutorService workers;
+	private final HoldExpiryWheel expiryWheel;
+	private volatile boolean closed = false;
+	
+	public TicketServiceRegistry(Function<String,SeatAllocator> allocatorFactory, int seatHoldTTLinSeconds, long idleTimeoutMillis) {
+		this(allocatorFactory, seatHoldTTLinSeconds, idleTimeoutMillis, null);
+	}
+	
+	/**
+	 * @param allocatorFactory
+	 *            builds the seat allocator of an event the first time the event is used
+	 * @param seatHoldTTLinSeconds
+	 *            how long holds last, for every event
+	 * @param idleTimeoutMillis
+	 *            how long an event can go unused before it is evicted
+	 * @param journalFactory
+	 *            opens the journal each event's holds and reservations are kept in and reloaded from. null to keep 
+	 *            events with reservations in memory
+	 */
+	public TicketServiceRegistry(Function<String,SeatAllocator> allocatorFactory, int seatHoldTTLinSeconds, long idleTimeoutMillis,
+			JournalFactory journalFactory) {
+		this.allocatorFactory = allocatorFactory;
+		this.seatHoldTTLinSeconds = seatHoldTTLinSeconds;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.journalFactory = journalFactory;
+		
+		AtomicInteger workerCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable, "ticket-service-worker-" + workerCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.expiryWheel = new HoldExpiryWheel(HoldExpiryWheel.DEFAULT_TICK_MILLIS, HoldExpiryWheel.DEFAULT_WHEEL_SIZE, workers);
+		scheduleEviction();
+	}
+	
+	/**
+	 * The TicketService of an event, created if this is the first time it has been asked for or it was evicted
+	 *
+	 * @throws UncheckedIOException
+	 *             if the event's journal can't be opened or replayed
+	 */
+	public TicketServiceImpl get(String eventId) {
+		if(closed) throw new IllegalStateException("TicketServiceRegistry is closed");
+		
+		//touched under the event's bin, so evictIdle never closes a service someone has just been handed
+		return events.compute(eventId, (id, event) -> {
+			if(event == null) event = load(id);
+			event.lastAccessNanos = System.nanoTime();
+			return event;
+		}).service;
+	}
+	
+	private Event load(String eventId) {
+		if(journalFactory == null) 
+			return new Event(new TicketServiceImpl(allocatorFactory.apply(eventId), seatHoldTTLinSeconds, expiryWheel), null);
+		
+		SeatJournal journal;
+		try {
+			journal = journalFactory.open(eventId);
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try {
+			return new Event(new TicketServiceImpl(allocatorFactory.apply(eventId), seatHoldTTLinSeconds, expiryWheel, journal), journal);
+		} catch(RuntimeException e) {
+			closeQuietly(journal);
+			throw e;
+		}
+	}
+	
+	private static void closeQuietly(SeatJournal journal) {
+		try {
+			journal.close();
+		} catch(IOException suppressed) {
+			//already failing, the original exception says why
+		}
+	}
+	
+	public boolean isLoaded(String eventId) {
+		return events.containsKey(eventId);
+	}
+	
+	/**
+	 * @return the number of events currently in memory
+	 */
+	public int size() {
+		return events.size();
+	}
+	
+	/**
+	 * The pool that runs hold expiry, shared with anything else that works on behalf of the events
+	 */
+	public ExecutorService workers() {
+		return workers;
+	}
+	
+	public HoldExpiryWheel expiryWheel() {
+		return expiryWheel;
+	}
+	
+	private void scheduleEviction() {
+		expiryWheel.schedule(() -> {
+			evictIdle();
+			if(!closed) scheduleEviction();
+		}, Math.max(HoldExpiryWheel.DEFAULT_TICK_MILLIS, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2));
+	}
+	
+	/**
+	 * Evicts every event that has been idle for longer than the idle timeout, isn't being called and has no
+	 * outstanding holds, nor reservations unless they are journaled
+	 *
+	 * @throws UncheckedIOException
+	 *             if an evicted event's journal couldn't be flushed, the event is still evicted
+	 */
+	public void evictIdle() {
+		long now = System.nanoTime();
+		IOException[] failure = new IOException[1];
+		events.forEach((eventId, event) -> {
+			if(now - event.lastAccessNanos < idleTimeoutNanos) return;
+			//get can't hand the service out while it is closed, and anyone who already has it is turned away after.
+			//The journal is closed under the event's bin too, so the next get replays everything it was sent
+			events.computeIfPresent(eventId, (id, current) -> {
+				if(current != event || System.nanoTime() - event.lastAccessNanos < idleTimeoutNanos
+						|| !event.service.closeIfUnused(event.journal != null)) return current;
+				if(event.journal != null) {
+					try {
+						event.journal.close();
+					} catch(IOException e) {
+						failure[0] = e;
+					}
+				}
+				return null;
+			});
+		});
+		if(failure[0] != null) throw new UncheckedIOException(failure[0]);
+	}
+	
+	/**
+	 * Closes every event's service and journal and stops the shared threads
+	 *
+	 * @throws UncheckedIOException
+	 *             if a journal couldn't be flushed, after everything else is closed
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		IOException failure = null;
+		for(Event event : events.values()) {
+			event.service.close();
+			if(event.journal == null) continue;
+			try {
+				event.journal.close();
+			} catch(IOException e) {
+				if(failure == null) failure = e;
+				else failure.addSuppressed(e);
+			}
+		}
+		events.clear();
+		expiryWheel.close();
+		workers.shutdown();
+		if(failure != null) throw new UncheckedIOException(failure);
+	}
+}
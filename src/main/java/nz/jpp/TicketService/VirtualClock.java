@@ -0,0 +1,34 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A TicketClock that stands still until it is advanced, so hours of holds expiring can be
+ * replayed in milliseconds. Pair it with HoldExpiryWheel.manual and advance the wheel after
+ * the clock.
+ */
+public final class VirtualClock implements TicketClock {
+
+	private final AtomicLong now;
+
+	public VirtualClock(long startMillis) {
+		this.now = new AtomicLong(startMillis);
+	}
+
+	@Override
+	public long millis() {
+		return now.get();
+	}
+
+	public void advance(long millis) {
+		if(millis < 0) throw new IllegalArgumentException("Time can't go backwards");
+		now.addAndGet(millis);
+	}
+
+	/**
+	 * Moves the clock forward to millis, or leaves it if it is already there
+	 */
+	public void advanceTo(long millis) {
+		now.accumulateAndGet(millis, Math::max);
+	}
+}
@@ -0,0 +1,232 @@
+package nz.jpp.TicketService;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Admission control in front of a TicketServiceImpl for an on-sale, when far more people ask for
+ * seats at once than the service can hold for. No caller's thread ever waits: every call returns
+ * a future straight away.
+ *
+ * At most maxInFlight holds are with the service at a time, which keeps the service's own queue
+ * short and the latency of an admitted hold bounded. Everyone else waits in a FIFO waiting room
+ * and is let in, in the order they arrived, as the holds in flight finish. Nobody can jump the
+ * queue: a newcomer only goes straight in when the room is empty. When the room is full, or a
+ * request has waited longer than maxWaitMillis by the time it reaches the front, it is turned away
+ * with a RejectedExecutionException so the client can back off and try again. Requests for more
+ * seats than are left are answered with null without queueing.
+ *
+ * Reservations count against maxInFlight too, so the service's queue never fills and nobody waits
+ * to put a call on it. The people making them already hold their seats, so when no slot is free
+ * they wait in a queue of their own that is let in ahead of the holds, and they are only turned
+ * away when that queue is full.
+ */
+public class WaitingRoom {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final long DEFAULT_MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/*
+	 * A hold, with a seatHoldId of -1, or a reservation
+	 */
+	private static final class Request {
+		final int numSeats;
+		final int seatHoldId;
+		final String email;
+		final long arrivalNanos = System.nanoTime();
+		final CompletableFuture<SeatHold> future;
+		final CompletableFuture<String> reserved;
+
+		private Request(int numSeats, int seatHoldId, String email, CompletableFuture<SeatHold> future, CompletableFuture<String> reserved) {
+			this.numSeats = numSeats;
+			this.seatHoldId = seatHoldId;
+			this.email = email;
+			this.future = future;
+			this.reserved = reserved;
+		}
+
+		boolean isHold() {
+			return future != null;
+		}
+
+		boolean isDone() {
+			return isHold() ? future.isDone() : reserved.isDone();
+		}
+
+		void fail(Throwable t) {
+			if(isHold()) future.completeExceptionally(t);
+			else reserved.completeExceptionally(t);
+		}
+	}
+
+	private final TicketServiceImpl service;
+	private final int maxInFlight;
+	private final int capacity;
+	private final long maxWaitNanos;
+	//finished holds let the next request in from here rather than from the service's writer thread
+	private final Executor executor;
+
+	//guarded by this
+	private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+	private final ArrayDeque<Request> reserving = new ArrayDeque<Request>();
+	private int inFlight = 0;
+
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+
+	public WaitingRoom(TicketServiceImpl service) {
+		this(service, ReservationPipeline.MAX_BATCH, DEFAULT_CAPACITY, DEFAULT_MAX_WAIT_MILLIS, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            how many holds and reservations the service works on at once, below the service's queue capacity
+	 * @param capacity
+	 *            how many holds can wait, and how many reservations, any more are turned away
+	 * @param maxWaitMillis
+	 *            how long a request can wait before it is turned away
+	 * @param executor
+	 *            runs the requests let in when a hold finishes
+	 */
+	public WaitingRoom(TicketServiceImpl service, int maxInFlight, int capacity, long maxWaitMillis, Executor executor) {
+		if(maxInFlight < 1 || maxInFlight > ReservationPipeline.DEFAULT_CAPACITY)
+			throw new IllegalArgumentException("maxInFlight must be from 1 to " + ReservationPipeline.DEFAULT_CAPACITY);
+		this.service = service;
+		this.maxInFlight = maxInFlight;
+		this.capacity = capacity;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		this.executor = executor;
+	}
+
+	/**
+	 * Like TicketServiceImpl.findAndHoldSeatsAsync, once the request is let in. The future completes with null if
+	 * numSeats are not available together, or fails with a RejectedExecutionException if the request was turned away.
+	 */
+	public CompletableFuture<SeatHold> findAndHoldSeats(int numSeats, String customerEmail) {
+		Request request = new Request(numSeats, -1, customerEmail, new CompletableFuture<SeatHold>(), null);
+		if(service.numSeatsAvailable() < numSeats) {
+			request.future.complete(null);
+			return request.future;
+		}
+
+		boolean admit = false;
+		synchronized(this) {
+			if(inFlight < maxInFlight && waiting.isEmpty() && reserving.isEmpty()) {
+				inFlight++;
+				admit = true;
+			} else if(waiting.size() < capacity) {
+				waiting.addLast(request);
+			} else {
+				shed.increment();
+				request.future.completeExceptionally(new RejectedExecutionException("The waiting room is full"));
+			}
+		}
+		if(admit) admit(request);
+		return request.future;
+	}
+
+	/**
+	 * Like TicketServiceImpl.reserveSeatsAsync, once a slot is free. Waiting reservations are let in before any waiting hold
+	 * and don't time out, but fail with a RejectedExecutionException if too many are already waiting.
+	 */
+	public CompletableFuture<String> reserveSeats(int seatHoldId, String customerEmail) {
+		Request request = new Request(0, seatHoldId, customerEmail, null, new CompletableFuture<String>());
+		boolean admit = false;
+		synchronized(this) {
+			if(inFlight < maxInFlight && reserving.isEmpty()) {
+				inFlight++;
+				admit = true;
+			} else if(reserving.size() < capacity) {
+				reserving.addLast(request);
+			} else {
+				shed.increment();
+				request.fail(new RejectedExecutionException("Too many reservations are waiting"));
+			}
+		}
+		if(admit) admit(request);
+		return request.reserved;
+	}
+
+	private void admit(Request request) {
+		if(!request.isHold()) {
+			finish(service.reserveSeatsAsync(request.seatHoldId, request.email), request.reserved);
+			return;
+		}
+		queueWait.recordSince(request.arrivalNanos);
+		admitted.increment();
+		finish(service.findAndHoldSeatsAsync(request.numSeats, request.email), request.future);
+	}
+	
+	//passes the service's answer on to the caller and lets the next request in, exactly once
+	private <T> void finish(CompletableFuture<T> call, CompletableFuture<T> caller) {
+		AtomicBoolean finished = new AtomicBoolean();
+		call.whenCompleteAsync((result, t) -> {
+			if(!finished.compareAndSet(false, true)) return;
+			if(t != null) caller.completeExceptionally(t);
+			else caller.complete(result);
+			next();
+		}, executor).whenComplete((ignored, rejected) -> {
+			//the executor turned the callback away, e.g. it was shut down. Without this the slot would never be freed
+			if(rejected == null || !finished.compareAndSet(false, true)) return;
+			caller.completeExceptionally(rejected);
+			next();
+		});
+	}
+
+	//a hold or reservation has finished, let the next request in
+	private void next() {
+		Request request;
+		synchronized(this) {
+			while(true) {
+				request = reserving.isEmpty() ? waiting.pollFirst() : reserving.pollFirst();
+				if(request == null) {
+					inFlight--;
+					return;
+				}
+				//the client gave up already
+				if(request.isDone()) continue;
+				//reservations don't time out. The oldest hold is at the front, so once the front is in time everyone behind it is too
+				if(!request.isHold() || System.nanoTime() - request.arrivalNanos <= maxWaitNanos) break;
+				shed.increment();
+				request.fail(new RejectedExecutionException("Waited too long in the waiting room"));
+			}
+		}
+		admit(request);
+	}
+
+	/**
+	 * @return the number of holds waiting to be let in
+	 */
+	public synchronized int waiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * @return the number of reservations waiting for a slot
+	 */
+	public synchronized int reserving() {
+		return reserving.size();
+	}
+
+	/**
+	 * @return the number of holds and reservations with the service now
+	 */
+	public synchronized int inFlight() {
+		return inFlight;
+	}
+
+	public long admitted() { return admitted.sum(); }
+	public long shed() { return shed.sum(); }
+
+	/**
+	 * Time from arriving to being let in
+	 */
+	public LatencyHistogram queueWait() { return queueWait; }
+}
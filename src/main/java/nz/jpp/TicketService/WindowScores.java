@@ -0,0 +1,155 @@
+package nz.jpp.TicketService;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/*
+ * Window scores of a SeatScoringModel, precomputed so the allocators can score any block of 
+ * adjacent seats with two array reads. Each row keeps prefix sums of its seat scores.
+ * 
+ * For every group size there is also an upper bound per row (the best window of that many seats
+ * in the row, ignoring who sits in them) and the rows in falling bound order, which is the order
+ * the bounded searches visit them in. Those are worked out the first time a group size is asked for.
+ */
+final class WindowScores {
+	
+	//window scores closer than this are treated as a tie, ties go to the leftmost window and the front row
+	static final double SCORE_EPSILON = 1e-9;
+	
+	private static final class Bounds {
+		final double[] rowBounds;
+		//boundsFrom[row] is the best bound of the row and every row behind it
+		final double[] boundsFrom;
+		final int[] rowOrder;
+		
+		Bounds(double[] rowBounds, double[] boundsFrom, int[] rowOrder) {
+			this.rowBounds = rowBounds;
+			this.boundsFrom = boundsFrom;
+			this.rowOrder = rowOrder;
+		}
+	}
+	
+	final int rows;
+	final int columns;
+	private final SeatScoringModel model;
+	//prefix[row * (columns + 1) + c] is the sum of the scores of columns [0, c) in the row, seats that don't exist count 0
+	private final double[] prefix;
+	//indexed by group size, filled in lazily and shared between threads
+	private final AtomicReferenceArray<Bounds> bounds;
+	
+	WindowScores(SeatScoringModel model) {
+		this.model = model;
+		this.rows = model.rows();
+		this.columns = model.columns();
+		
+		double[] scores = model.scores();
+		prefix = new double[rows * (columns + 1)];
+		for(int row = 0; row < rows; row++) {
+			int rowStart = row * (columns + 1);
+			for(int column = 0; column < columns; column++) {
+				double score = scores[row * columns + column];
+				prefix[rowStart + column + 1] = prefix[rowStart + column] + (Double.isNaN(score) ? 0 : score);
+			}
+		}
+		bounds = new AtomicReferenceArray<Bounds>(columns + 1);
+	}
+	
+	SeatScoringModel model() {
+		return model;
+	}
+	
+	private Bounds bounds(int numSeats) {
+		Bounds sized = bounds.get(numSeats);
+		if(sized != null) return sized;
+		
+		double[] rowBounds = new double[rows];
+		for(int row = 0; row < rows; row++) {
+			double best = Double.NEGATIVE_INFINITY;
+			for(int column = 0; column + numSeats <= columns; column++)
+				best = Math.max(best, windowScore(row, column, numSeats));
+			rowBounds[row] = best;
+		}
+		double[] boundsFrom = new double[rows];
+		for(int row = rows - 1; row >= 0; row--)
+			boundsFrom[row] = row == rows - 1 ? rowBounds[row] : Math.max(rowBounds[row], boundsFrom[row + 1]);
+		int[] rowOrder = IntStream.range(0, rows).boxed()
+				.sorted((x, y) -> Double.compare(rowBounds[y], rowBounds[x]))
+				.mapToInt(Integer::intValue).toArray();
+		
+		//two threads may both work it out, they get the same answer
+		bounds.compareAndSet(numSeats, null, new Bounds(rowBounds, boundsFrom, rowOrder));
+		return bounds.get(numSeats);
+	}
+	
+	/*
+	 * Row indexes by falling bound for numSeats, ties front row first
+	 */
+	int[] rowOrder(int numSeats) {
+		return bounds(numSeats).rowOrder;
+	}
+	
+	/*
+	 * The best score numSeats seats in the row could have if the best of them were free
+	 */
+	double bound(int row, int numSeats) {
+		return bounds(numSeats).rowBounds[row];
+	}
+	
+	/*
+	 * The best bound of numSeats seats in the row or any row behind it
+	 */
+	double boundFrom(int row, int numSeats) {
+		return bounds(numSeats).boundsFrom[row];
+	}
+	
+	/*
+	 * Score of numSeats adjacent seats starting at column in the given row
+	 */
+	double score(int row, int column, int numSeats) {
+		return windowScore(row, column, numSeats);
+	}
+	
+	private double windowScore(int row, int column, int numSeats) {
+		int rowStart = row * (columns + 1);
+		return prefix[rowStart + column + numSeats] - prefix[rowStart + column];
+	}
+	
+	/*
+	 * Returns the first column of the best scoring window of numSeats free seats in the row bitmap, or -1
+	 */
+	int bestWindow(int row, long[] seats, int numSeats) {
+		int bestColumn = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		
+		int start = SeatBitmaps.nextSetBit(seats, 0, columns);
+		while(start < columns) {
+			int end = SeatBitmaps.nextClearBit(seats, start, columns);
+			int column = bestWindowInRun(row, start, end, numSeats);
+			if(column >= 0) {
+				double score = windowScore(row, column, numSeats);
+				if(score > bestScore + SCORE_EPSILON) {
+					bestScore = score;
+					bestColumn = column;
+				}
+			}
+			start = SeatBitmaps.nextSetBit(seats, end, columns);
+		}
+		return bestColumn;
+	}
+	
+	/*
+	 * Returns the first column of the best window of numSeats seats inside the free run [runStart, runEnd), or -1
+	 */
+	int bestWindowInRun(int row, int runStart, int runEnd, int numSeats) {
+		int bestColumn = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for(int column = runStart; column + numSeats <= runEnd; column++) {
+			double score = windowScore(row, column, numSeats);
+			if(score > bestScore + SCORE_EPSILON) {
+				bestScore = score;
+				bestColumn = column;
+			}
+		}
+		return bestColumn;
+	}
+}
@@ -0,0 +1,500 @@
+package nz.jpp.TicketService;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+
+public class SeatAllocatorTest 
+{
+	
+	private int seat(int row, int seat) {
+		return SeatId.encode(row, seat);
+	}
+	
+	private Set<Integer> intSetGenerator(Integer...integers) {
+		HashSet<Integer> set = new HashSet<Integer>();
+		for (Integer item : integers) set.add(item);
+		return set;
+	}
+	
+	private double frontAndCenterScore(Set<Integer> seats, int rows, int columns) {
+		SeatScoringModel model = SeatScoringModel.frontAndCenter(rows, columns);
+		return seats.stream().mapToDouble(seat -> model.score(SeatId.row(seat), SeatId.seat(seat))).sum();
+	}
+	
+	//holds every seat then returns the same random selection of them to each allocator
+	private void fragment(int rows, int columns, double fill, long seed, SeatAllocator...allocators) {
+		List<Integer> held = new ArrayList<Integer>();
+		for (SeatAllocator allocator : allocators) {
+			held.clear();
+			for (int row = 0; row < rows; row++) held.addAll(allocator.getSeats(columns));
+		}
+		Collections.sort(held);
+		Collections.shuffle(held, new Random(seed));
+		for (Integer seat : held.subList(0, (int) Math.round(held.size() * (1 - fill)))) {
+			for (SeatAllocator allocator : allocators) allocator.returnSeat(seat);
+		}
+	}
+	
+	@Test
+	public void testBitmapFrontAndCenterAllocation() {
+		SeatAllocator allocator = new BitmapFrontAndCenterSeatAllocator(3, 5);
+		
+		assertEquals(intSetGenerator(seat(1, 3)), allocator.getSeats(1));
+		assertEquals(intSetGenerator(seat(2, 1), seat(2, 2), seat(2, 3), seat(2, 4), seat(2, 5)), allocator.getSeats(5));
+		assertEquals(intSetGenerator(seat(3, 2), seat(3, 3), seat(3, 4)), allocator.getSeats(3));
+		assertTrue(allocator.getSeats(6).isEmpty());
+		assertTrue(allocator.getSeats(0).isEmpty());
+		assertEquals(6, allocator.numSeatsAvailable());
+		
+		allocator.returnSeat(seat(1, 3));
+		allocator.returnSeat(seat(3, 2));
+		allocator.returnSeat(seat(3, 3));
+		allocator.returnSeat(seat(3, 4));
+		assertEquals(10, allocator.numSeatsAvailable());
+		assertEquals(intSetGenerator(seat(1, 2), seat(1, 3), seat(1, 4)), allocator.getSeats(3));
+	}
+	
+	/**
+	 * The bitmap allocator has to pick the same row and an equally good block as FrontAndCenterSeatAllocator 
+	 * for every group size, however the venue has been fragmented
+	 */
+	@Test
+	public void testBitmapMatchesFrontAndCenter() {
+		int[][] venues = {{3, 5}, {10, 24}, {7, 13}, {20, 70}, {4, 150}};
+		double[] fills = {0.0, 0.3, 0.6, 0.9};
+		
+		for (int[] venue : venues) {
+			int rows = venue[0], columns = venue[1];
+			for (double fill : fills) {
+				SeatAllocator expected = new FrontAndCenterSeatAllocator(rows, columns);
+				SeatAllocator actual = new BitmapFrontAndCenterSeatAllocator(rows, columns);
+				fragment(rows, columns, fill, rows * columns, expected, actual);
+				assertEquals(expected.numSeatsAvailable(), actual.numSeatsAvailable());
+				
+				for (int numSeats = 1; numSeats <= Math.min(columns, 20); numSeats++) {
+					Set<Integer> expectedSeats = expected.getSeats(numSeats);
+					Set<Integer> actualSeats = actual.getSeats(numSeats);
+					String message = rows + "x" + columns + " fill " + fill + " group " + numSeats;
+					
+					assertEquals(message, expectedSeats.size(), actualSeats.size());
+					if(!expectedSeats.isEmpty()) {
+						assertEquals(message, SeatId.row(expectedSeats.iterator().next()), SeatId.row(actualSeats.iterator().next()));
+						assertEquals(message, frontAndCenterScore(expectedSeats, rows, columns), 
+								frontAndCenterScore(actualSeats, rows, columns), 1e-6);
+					}
+					expectedSeats.forEach(seat -> expected.returnSeat(seat));
+					actualSeats.forEach(seat -> actual.returnSeat(seat));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The off-heap allocator runs the bitmap allocator's search over its buffer, so it has to hand out exactly the same seats
+	 */
+	@Test
+	public void testOffHeapMatchesBitmap() {
+		int rows = 20, columns = 70;
+		SeatScoringModel venue = SeatScoringModel.frontAndCenter(rows, columns);
+		//two events in one arena
+		ByteBuffer arena = ByteBuffer.allocateDirect(2 * OffHeapSeatAllocator.bytesNeeded(venue));
+		SeatAllocator first = new OffHeapSeatAllocator(venue, arena);
+		arena.position(OffHeapSeatAllocator.bytesNeeded(venue));
+		SeatAllocator actual = new OffHeapSeatAllocator(venue, arena);
+		SeatAllocator expected = new BitmapFrontAndCenterSeatAllocator(venue);
+		assertEquals(rows * 16, OffHeapSeatAllocator.bytesNeeded(venue));
+
+		fragment(rows, columns, 0.6, 23, expected, actual);
+		assertEquals(expected.numSeatsAvailable(), actual.numSeatsAvailable());
+		assertEquals(rows * columns, first.numSeatsAvailable());
+
+		Random random = new Random(23);
+		for (int i = 0; i < 500; i++) {
+			int numSeats = 1 + random.nextInt(12);
+			boolean split = random.nextBoolean();
+			Set<Integer> expectedSeats = split ? expected.getSplitSeats(numSeats, Long.MAX_VALUE) : expected.getSeats(numSeats);
+			Set<Integer> actualSeats = split ? actual.getSplitSeats(numSeats, Long.MAX_VALUE) : actual.getSeats(numSeats);
+			assertEquals(expectedSeats, actualSeats);
+			assertEquals(expected.numSeatsAvailable(), actual.numSeatsAvailable());
+			if (random.nextInt(3) == 0) {
+				expected.returnSeats(expectedSeats);
+				actual.returnSeats(actualSeats);
+			}
+		}
+		for (int row = 1; row <= rows; row++) assertEquals(expected.numSeatsAvailable(row), actual.numSeatsAvailable(row));
+		//the other event in the arena is untouched
+		assertEquals(rows * columns, first.numSeatsAvailable());
+		assertEquals(intSetGenerator(seat(1, 35)), first.getSeats(1));
+	}
+
+	/**
+	 * A venue cut into sections of rows has to be sold the same way as the whole venue in one allocator
+	 */
+	@Test
+	public void testSectionedSeatAllocator() {
+		SeatScoringModel venue = SeatScoringModel.frontAndCenter(12, 20);
+		List<SeatScoringModel> sections = new ArrayList<SeatScoringModel>();
+		for (int first = 1; first <= 12; first += 4) sections.add(venue.rows(first, first + 3));
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SectionedSeatAllocator sectioned = new SectionedSeatAllocator(sections, pool);
+			SeatAllocator whole = new BitmapFrontAndCenterSeatAllocator(venue);
+			assertEquals(240, sectioned.numSeatsAvailable());
+			assertEquals(3, sectioned.sections());
+
+			Random random = new Random(12);
+			while (whole.numSeatsAvailable() > 0) {
+				int numSeats = 1 + random.nextInt(8);
+				Set<Integer> expected = whole.getSeats(numSeats);
+				Set<Integer> actual = sectioned.getSeats(numSeats);
+				assertEquals(expected.size(), actual.size());
+				if (expected.isEmpty()) {
+					if (numSeats == 1) break;
+					continue;
+				}
+				int seat = actual.iterator().next();
+				assertEquals(SeatId.row(expected.iterator().next()), SeatId.section(seat) * 4 + SeatId.row(seat));
+				double actualScore = actual.stream().mapToDouble(id -> sectioned.getScoringModel(SeatId.section(id)).score(SeatId.row(id), SeatId.seat(id))).sum();
+				assertEquals(frontAndCenterScore(expected, 12, 20), actualScore, 1e-4);
+			}
+			assertEquals(0, sectioned.numSeatsAvailable());
+
+			//seats go back to the right section, and a take that fails in one section takes nothing anywhere
+			Set<Integer> returned = intSetGenerator(SeatId.encode(0, 4, 1), SeatId.encode(0, 4, 2), SeatId.encode(2, 4, 1), SeatId.encode(2, 4, 2));
+			sectioned.returnSeats(returned);
+			assertEquals(4, sectioned.numSeatsAvailable());
+			assertEquals(4, sectioned.numSeatsAvailable(4));
+			assertFalse(sectioned.takeSeats(intSetGenerator(SeatId.encode(0, 4, 1), SeatId.encode(1, 4, 1))));
+			assertEquals(4, sectioned.numSeatsAvailable());
+
+			//no section has 4 together, so they are split within one
+			assertEquals(intSetGenerator(SeatId.encode(0, 4, 1), SeatId.encode(0, 4, 2)), sectioned.getSeats(2));
+			sectioned.returnSeats(intSetGenerator(SeatId.encode(0, 4, 1), SeatId.encode(0, 4, 2), SeatId.encode(0, 3, 1), SeatId.encode(0, 3, 2)));
+			Set<Integer> split = sectioned.getSplitSeats(4, Long.MAX_VALUE);
+			assertEquals(4, split.size());
+			for (int seat : split) assertEquals(0, SeatId.section(seat));
+			assertTrue(sectioned.takeSeats(intSetGenerator(SeatId.encode(2, 4, 1), SeatId.encode(2, 4, 2))));
+			assertEquals(0, sectioned.numSeatsAvailable());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * FrontAndCenterSeatAllocator serves small groups from its cache of best blocks, which has to hand out exactly
+	 * what a fresh search would through any mix of holds and returns
+	 */
+	@Test
+	public void testBestBlockCacheMatchesSearch() {
+		int rows = 12, columns = 30;
+		SeatAllocator expected = new FrontAndCenterSeatAllocator(SeatScoringModel.frontAndCenter(rows, columns), false);
+		SeatAllocator actual = new FrontAndCenterSeatAllocator(rows, columns);
+		List<Set<Integer>> expectedHolds = new ArrayList<Set<Integer>>();
+		List<Set<Integer>> actualHolds = new ArrayList<Set<Integer>>();
+		Random random = new Random(14);
+		
+		for (int i = 0; i < 3000; i++) {
+			if(!expectedHolds.isEmpty() && random.nextInt(3) == 0) {
+				int hold = random.nextInt(expectedHolds.size());
+				expected.returnSeats(expectedHolds.remove(hold));
+				actual.returnSeats(actualHolds.remove(hold));
+				continue;
+			}
+			int numSeats = 1 + random.nextInt(8);
+			Set<Integer> expectedSeats = expected.getSeats(numSeats);
+			Set<Integer> actualSeats = actual.getSeats(numSeats);
+			assertEquals("step " + i + " group " + numSeats, expectedSeats, actualSeats);
+			if(expectedSeats.isEmpty()) continue;
+			expectedHolds.add(expectedSeats);
+			actualHolds.add(actualSeats);
+		}
+		assertEquals(expected.numSeatsAvailable(), actual.numSeatsAvailable());
+	}
+	
+	@Test
+	public void testConcurrentMatchesBitmapWithoutContention() {
+		int rows = 15, columns = 40;
+		for (double fill : new double[] {0.0, 0.5, 0.9}) {
+			SeatAllocator expected = new BitmapFrontAndCenterSeatAllocator(rows, columns);
+			SeatAllocator actual = new ConcurrentFrontAndCenterSeatAllocator(rows, columns);
+			fragment(rows, columns, fill, 7, expected, actual);
+			
+			for (int numSeats = 1; numSeats <= 20; numSeats++) {
+				Set<Integer> expectedSeats = expected.getSeats(numSeats);
+				assertEquals(expectedSeats, actual.getSeats(numSeats));
+				assertEquals(expected.numSeatsAvailable(), actual.numSeatsAvailable());
+			}
+		}
+	}
+	
+	/**
+	 * Many threads holding and returning small groups must never be handed the same seat
+	 */
+	@Test
+	public void testConcurrentAllocatorUnderContention() throws InterruptedException {
+		int rows = 20, columns = 30;
+		SeatAllocator allocator = new ConcurrentFrontAndCenterSeatAllocator(rows, columns);
+		ConcurrentHashMap<Integer,Integer> owners = new ConcurrentHashMap<Integer,Integer>();
+		AtomicInteger doubleBooked = new AtomicInteger();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++) {
+			int thread = t;
+			executor.submit(() -> {
+				Random rand = new Random(thread);
+				for (int i = 0; i < 5000; i++) {
+					Set<Integer> seats = allocator.getSeats(1 + rand.nextInt(6));
+					seats.forEach(seat -> { if (owners.putIfAbsent(seat, thread) != null) doubleBooked.incrementAndGet(); });
+					seats.forEach(seat -> owners.remove(seat));
+					seats.forEach(seat -> allocator.returnSeat(seat));
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		
+		assertEquals(0, doubleBooked.get());
+		assertEquals(rows * columns, allocator.numSeatsAvailable());
+	}
+	
+	@Test
+	public void testAvailabilityCounts() {
+		SeatAllocator[] allocators = {new InOrderSeatAllocator(3, 5), new FrontAndCenterSeatAllocator(3, 5),
+				new BitmapFrontAndCenterSeatAllocator(3, 5), new ConcurrentFrontAndCenterSeatAllocator(3, 5)};
+		
+		for (SeatAllocator allocator : allocators) {
+			String name = allocator.getClass().getSimpleName();
+			Set<Integer> seats = allocator.getSeats(5);
+			int row = SeatId.row(seats.iterator().next());
+			assertEquals(name, 10, allocator.numSeatsAvailable());
+			assertEquals(name, 0, allocator.numSeatsAvailable(row));
+			
+			Integer seat = seats.iterator().next();
+			allocator.returnSeat(seat);
+			//returning the same seat twice mustn't count it twice
+			allocator.returnSeat(seat);
+			assertEquals(name, 11, allocator.numSeatsAvailable());
+			assertEquals(name, 1, allocator.numSeatsAvailable(row));
+		}
+	}
+	
+	/**
+	 * Returning a batch of seats spread over several rows must leave every allocator as if they were returned one by one
+	 */
+	@Test
+	public void testReturnSeats() {
+		int rows = 6, columns = 20;
+		SeatAllocator[] allocators = {new InOrderSeatAllocator(rows, columns), new FrontAndCenterSeatAllocator(rows, columns),
+				new BitmapFrontAndCenterSeatAllocator(rows, columns), new ConcurrentFrontAndCenterSeatAllocator(rows, columns)};
+		
+		for (SeatAllocator allocator : allocators) {
+			String name = allocator.getClass().getSimpleName();
+			for (int row = 0; row < rows; row++) allocator.getSeats(columns);
+			assertEquals(name, 0, allocator.numSeatsAvailable());
+			
+			allocator.returnSeats(intSetGenerator(seat(1, 5), seat(1, 6), seat(1, 7), seat(1, 8), seat(3, 1), seat(3, 2), seat(3, 20), seat(6, 10)));
+			assertEquals(name, 8, allocator.numSeatsAvailable());
+			assertEquals(name, 4, allocator.numSeatsAvailable(1));
+			assertEquals(name, 3, allocator.numSeatsAvailable(3));
+			assertEquals(name, intSetGenerator(seat(1, 5), seat(1, 6), seat(1, 7), seat(1, 8)), allocator.getSeats(4));
+			assertEquals(name, intSetGenerator(seat(3, 1), seat(3, 2)), allocator.getSeats(2));
+		}
+	}
+	
+	/**
+	 * takeSeats is all or nothing, used to put restored holds back into a fresh allocator
+	 */
+	@Test
+	public void testTakeSeats() {
+		int rows = 4, columns = 10;
+		SeatAllocator[] allocators = {new InOrderSeatAllocator(rows, columns), new FrontAndCenterSeatAllocator(rows, columns),
+				new BitmapFrontAndCenterSeatAllocator(rows, columns), new ConcurrentFrontAndCenterSeatAllocator(rows, columns)};
+		
+		for (SeatAllocator allocator : allocators) {
+			String name = allocator.getClass().getSimpleName();
+			Set<Integer> taken = intSetGenerator(seat(1, 4), seat(1, 5), seat(1, 6), seat(1, 7), seat(3, 1));
+			assertTrue(name, allocator.takeSeats(taken));
+			assertEquals(name, 35, allocator.numSeatsAvailable());
+			assertEquals(name, 6, allocator.numSeatsAvailable(1));
+			
+			//seat(1, 7) is already taken so seat(2, 1) must stay free
+			assertFalse(name, allocator.takeSeats(intSetGenerator(seat(2, 1), seat(1, 7))));
+			assertEquals(name, 35, allocator.numSeatsAvailable());
+			assertEquals(name, 10, allocator.numSeatsAvailable(2));
+			
+			while (allocator.numSeatsAvailable() > 0) {
+				for (Integer seatNum : allocator.getSeats(1)) assertFalse(name, taken.contains(seatNum));
+			}
+			allocator.returnSeats(taken);
+			assertEquals(name, 5, allocator.numSeatsAvailable());
+		}
+	}
+	
+	/**
+	 * A party that doesn't fit in any row is split into as few blocks as possible, in adjacent rows if there is a choice
+	 */
+	@Test
+	public void testSplitSeats() {
+		int rows = 4, columns = 10;
+		SeatAllocator[] allocators = {new InOrderSeatAllocator(rows, columns), new FrontAndCenterSeatAllocator(rows, columns),
+				new BitmapFrontAndCenterSeatAllocator(rows, columns), new ConcurrentFrontAndCenterSeatAllocator(rows, columns)};
+		
+		for (SeatAllocator allocator : allocators) {
+			String name = allocator.getClass().getSimpleName();
+			for (int row = 0; row < rows; row++) allocator.getSeats(columns);
+			allocator.returnSeats(intSetGenerator(seat(1, 4), seat(1, 5), seat(1, 6), seat(3, 4), seat(3, 5), seat(3, 6), 
+					seat(4, 1), seat(4, 2), seat(4, 9), seat(4, 10)));
+			
+			assertTrue(name, allocator.getSeats(6).isEmpty());
+			assertEquals(name, intSetGenerator(seat(1, 4), seat(1, 5), seat(1, 6), seat(3, 4), seat(3, 5), seat(3, 6)), allocator.getSplitSeats(6, Long.MAX_VALUE));
+			assertEquals(name, 4, allocator.numSeatsAvailable());
+			
+			//rows 3 and 4 are stacked, so they win over the better but further apart rows 1 and 4
+			allocator.returnSeats(intSetGenerator(seat(1, 5), seat(3, 5)));
+			assertEquals(name, intSetGenerator(seat(3, 5), seat(4, 1), seat(4, 2)), allocator.getSplitSeats(3, Long.MAX_VALUE));
+			//seats that fit together are handed out as usual
+			assertEquals(name, intSetGenerator(seat(4, 9), seat(4, 10)), allocator.getSplitSeats(2, Long.MAX_VALUE));
+			assertTrue(name, allocator.getSplitSeats(2, Long.MAX_VALUE).isEmpty());
+			assertEquals(name, 1, allocator.numSeatsAvailable());
+		}
+	}
+	
+	/**
+	 * A split party bigger than the seats free, or than maxBlocks rows could hold, is turned away before the search sizes anything by it
+	 */
+	@Test
+	public void testOversizedSplitSeats() {
+		int rows = 4, columns = 10;
+		SeatAllocator[] allocators = {new InOrderSeatAllocator(rows, columns), new FrontAndCenterSeatAllocator(rows, columns),
+				new BitmapFrontAndCenterSeatAllocator(rows, columns), new ConcurrentFrontAndCenterSeatAllocator(rows, columns)};
+		
+		for (SeatAllocator allocator : allocators) {
+			String name = allocator.getClass().getSimpleName();
+			assertTrue(name, allocator.getSplitSeats(1_000_000, Long.MAX_VALUE).isEmpty());
+			assertTrue(name, allocator.getSplitSeats(Integer.MAX_VALUE, Long.MAX_VALUE).isEmpty());
+			allocator.getSeats(columns);
+			allocator.getSeats(columns);
+			assertTrue(name, allocator.getSplitSeats(21, Long.MAX_VALUE).isEmpty());
+			assertEquals(name, 20, allocator.numSeatsAvailable());
+			assertEquals(name, 20, allocator.getSplitSeats(20, Long.MAX_VALUE).size());
+		}
+		
+		try (TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(rows, columns), 60)) {
+			assertNull(ts.findAndHoldSeats(1_000_000, "fry@planetexpress.com", true));
+			assertEquals(rows * columns, ts.numSeatsAvailable());
+		}
+	}
+	
+	/**
+	 * A venue file with an aisle down the middle, the front row in price tier 1 and the best seat at the back
+	 */
+	@Test
+	public void testSeatScoringModel() throws IOException {
+		SeatScoringModel model = SeatScoringModel.readCsv(new StringReader(
+				"# stage\n1:1,1:1,,1:1,1:1\n2,2,-,2,2\n3,3,,3,5\n"));
+		assertEquals(3, model.rows());
+		assertEquals(5, model.columns());
+		assertFalse(model.isSeat(2, 3));
+		assertEquals(1, model.tier(1, 5));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		model.write(out);
+		SeatScoringModel read = SeatScoringModel.read(new ByteArrayInputStream(out.toByteArray()));
+		for (int row = 1; row <= 3; row++) {
+			for (int seat = 1; seat <= 5; seat++) {
+				assertEquals(0, Double.compare(model.score(row, seat), read.score(row, seat)));
+				assertEquals(model.tier(row, seat), read.tier(row, seat));
+			}
+		}
+		
+		try {
+			SeatScoringModel.readCsv(new StringReader("1:1,1:300\n"));
+			fail("tier 300 was read as a byte");
+		} catch(IOException expected) {}
+		
+		//the row term is over 800 at the front of a venue this deep, the center seat still beats its neighbor
+		SeatScoringModel deep = SeatScoringModel.frontAndCenter(4095, 1001);
+		assertTrue(deep.score(1, 501) > deep.score(1, 500));
+		
+		SeatAllocator[] allocators = {new InOrderSeatAllocator(model), new FrontAndCenterSeatAllocator(model),
+				new BitmapFrontAndCenterSeatAllocator(model), new ConcurrentFrontAndCenterSeatAllocator(model)};
+		for (SeatAllocator allocator : allocators) {
+			String name = allocator.getClass().getSimpleName();
+			assertEquals(name, 12, allocator.numSeatsAvailable());
+			assertEquals(name, 4, allocator.numSeatsAvailable(2));
+			//no block of three can cross the aisle
+			assertTrue(name, allocator.getSeats(3).isEmpty());
+			Set<Integer> pair = allocator.getSeats(2);
+			assertEquals(name, 2, pair.size());
+			if(!(allocator instanceof InOrderSeatAllocator)) assertEquals(name, intSetGenerator(seat(3, 4), seat(3, 5)), pair);
+			
+			allocator.returnSeat(seat(2, 3));
+			allocator.returnSeats(intSetGenerator(seat(1, 3), seat(3, 3)));
+			assertEquals(name, 10, allocator.numSeatsAvailable());
+			while (allocator.numSeatsAvailable() > 0) {
+				for (Integer seatNum : allocator.getSeats(1)) assertNotEquals(name, 3, SeatId.seat(seatNum));
+			}
+		}
+		
+		SeatAllocator front = new BitmapFrontAndCenterSeatAllocator(model.forTiers(SeatScoringModel.tierMask(1)));
+		assertEquals(4, front.numSeatsAvailable());
+		assertEquals(intSetGenerator(seat(1, 1), seat(1, 2)), front.getSeats(2));
+		assertEquals(8, new BitmapFrontAndCenterSeatAllocator(model.forTiers(SeatScoringModel.tierMask(0))).numSeatsAvailable());
+	}
+	
+	@Test
+	public void testSeatSet() {
+		SeatSet seats = SeatSet.of(304, 302, 303, 302);
+		
+		assertEquals(3, seats.size());
+		assertEquals(302, seats.get(0));
+		assertTrue(seats.contains(303));
+		assertFalse(seats.contains(Integer.valueOf(305)));
+		assertEquals(intSetGenerator(302, 303, 304), seats);
+		assertEquals(seats, intSetGenerator(302, 303, 304));
+		assertEquals(intSetGenerator(302, 303, 304).hashCode(), seats.hashCode());
+		assertEquals(seats, SeatSet.range(302, 3));
+		assertSame(seats, SeatSet.copyOf(seats));
+		try {
+			seats.add(305);
+			fail("SeatSet should be immutable");
+		} catch (UnsupportedOperationException e) {}
+	}
+	
+	@Test
+	public void testSeatId() {
+		int id = SeatId.encode(5, 4000, 4095);
+		assertEquals(5, SeatId.section(id));
+		assertEquals(4000, SeatId.row(id));
+		assertEquals(4095, SeatId.seat(id));
+		assertTrue(id > 0);
+		assertEquals(SeatId.encode(2, 8) + 1, SeatId.encode(2, 9));
+		assertTrue(SeatId.encode(2, SeatId.MAX_SEAT) < SeatId.encode(3, 1));
+		assertEquals(2 * 500 + 9, SeatId.index(SeatId.encode(3, 10), 500));
+		try {
+			SeatId.encode(1, 4096);
+			fail("seat 4096 doesn't fit");
+		} catch (IllegalArgumentException e) {}
+	}
+}
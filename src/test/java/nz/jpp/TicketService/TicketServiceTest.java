@@ -4,16 +4,32 @@ import org.junit.Test;
 
 import static org.mockito.Mockito.*;
 
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -21,6 +37,10 @@ import static org.junit.Assert.*;
 public class TicketServiceTest 
 {
 	
+	private int seat(int row, int seat) {
+		return SeatId.encode(row, seat);
+	}
+	
 	private Set<Integer> intSetGenerator(Integer...integers) {
 		HashSet<Integer> set = new HashSet<Integer>();
 		for (Integer item : integers) set.add(item);
@@ -49,19 +69,15 @@ public class TicketServiceTest
         //check that invalid reserve requests return errors
         assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(benderSeats.getSeatHoldId(), "lkajsdfklsdj@lakjsdf.com"));
         assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(100, benderSeats.getEmail()));
+        assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(benderSeats.getSeatHoldId(), null));
         //check that a valid reserve request succeeds. 
         String benderReservation = ts.reserveSeats(benderSeats.getSeatHoldId(), benderSeats.getEmail());
-        try {
-        		Integer.parseInt(benderReservation,16);       
-        } catch (NumberFormatException e ) {
-        		fail("reservation was not hex. Was it an error? reservation: " + benderReservation);
-        }
+        assertTrue("reservation was not a confirmation code. Was it an error? reservation: " + benderReservation,
+        		benderReservation.matches("[0-9A-Z]{16}"));
       
         //check that the timed out requests return seats to the allocator.
-        verify(allocator, timeout(4000)).returnSeat(1);
-        verify(allocator, timeout(4000)).returnSeat(4);
-        verify(allocator, timeout(4000)).returnSeat(5);
-        verify(allocator, timeout(4000)).returnSeat(6);
+        verify(allocator, timeout(4000)).returnSeats(intSetGenerator(1));
+        verify(allocator, timeout(4000)).returnSeats(intSetGenerator(4, 5, 6));
         
         //check that timed out seats can no longer be reserved under the same id
         assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(amySeats.getSeatHoldId(), amySeats.getEmail()));
@@ -81,30 +97,25 @@ public class TicketServiceTest
         SeatHold benderSeats = ts.findAndHoldSeats(5, "bender@ilovebender.com");        
         SeatHold amySeats = ts.findAndHoldSeats(3, "awong79@marslink.web");   
 
-        assertTrue(intSetGenerator(101).equals(zoidbergSeats.getSeats()));
+        assertTrue(intSetGenerator(seat(1, 1)).equals(zoidbergSeats.getSeats()));
         //bender tried to allocate more than were available in the row, jumps to the next
-        assertTrue(intSetGenerator(201, 202, 203, 204, 205).equals(benderSeats.getSeats()));
+        assertTrue(intSetGenerator(seat(2, 1), seat(2, 2), seat(2, 3), seat(2, 4), seat(2, 5)).equals(benderSeats.getSeats()));
         //there are still enough in row 1 for amy
-        assertTrue(intSetGenerator(102, 103, 104).equals(amySeats.getSeats()));
+        assertTrue(intSetGenerator(seat(1, 2), seat(1, 3), seat(1, 4)).equals(amySeats.getSeats()));
         assertEquals(null, ts.findAndHoldSeats(6, "bender@ilovebender.com"));
         
         assertEquals(null, ts.findAndHoldSeats(0, "bender@ilovebender.com"));
         
         String benderReservation = ts.reserveSeats(benderSeats.getSeatHoldId(), benderSeats.getEmail());
-        try {
-        		Integer.parseInt(benderReservation,16);       
-        } catch (NumberFormatException e ) {
-        		fail("reservation was not hex. Was it an error? reservation: " + benderReservation);
-        }
+        assertTrue("reservation was not a confirmation code. Was it an error? reservation: " + benderReservation,
+        		benderReservation.matches("[0-9A-Z]{16}"));
       
         //check that the timed out requests return seats to the allocator.
-        verify(spyAllocator, timeout(4000)).returnSeat(101);
-        verify(spyAllocator, timeout(4000)).returnSeat(102);
-        verify(spyAllocator, timeout(4000)).returnSeat(103);
-        verify(spyAllocator, timeout(4000)).returnSeat(104);
+        verify(spyAllocator, timeout(4000)).returnSeats(intSetGenerator(seat(1, 1)));
+        verify(spyAllocator, timeout(4000)).returnSeats(intSetGenerator(seat(1, 2), seat(1, 3), seat(1, 4)));
         
         SeatHold amyTriesAgain = ts.findAndHoldSeats(3, "awong79@marslink.web");
-        assertTrue(intSetGenerator(101, 102, 103).equals(amyTriesAgain.getSeats()));
+        assertTrue(intSetGenerator(seat(1, 1), seat(1, 2), seat(1, 3)).equals(amyTriesAgain.getSeats()));
 
         System.out.println("testInOrderAllocation done!");
     }
@@ -121,99 +132,741 @@ public class TicketServiceTest
         SeatHold benderSeats = ts.findAndHoldSeats(5, "bender@ilovebender.com");        
         SeatHold amySeats = ts.findAndHoldSeats(3, "awong79@marslink.web");   
 
-        assertTrue(intSetGenerator(103).equals(zoidbergSeats.getSeats()));
+        assertTrue(intSetGenerator(seat(1, 3)).equals(zoidbergSeats.getSeats()));
         //bender tried to allocate more than were available in the row, jumps to the next
-        assertTrue(intSetGenerator(201, 202, 203, 204, 205).equals(benderSeats.getSeats()));
+        assertTrue(intSetGenerator(seat(2, 1), seat(2, 2), seat(2, 3), seat(2, 4), seat(2, 5)).equals(benderSeats.getSeats()));
         //there are still enough in row 1 for amy
-        assertTrue(intSetGenerator(302, 303, 304).equals(amySeats.getSeats()));
+        assertTrue(intSetGenerator(seat(3, 2), seat(3, 3), seat(3, 4)).equals(amySeats.getSeats()));
         assertEquals(null, ts.findAndHoldSeats(6, "bender@ilovebender.com"));
         
         assertEquals(null, ts.findAndHoldSeats(0, "bender@ilovebender.com"));
         
         String benderReservation = ts.reserveSeats(benderSeats.getSeatHoldId(), benderSeats.getEmail());
-        try {
-        		Integer.parseInt(benderReservation,16);       
-        } catch (NumberFormatException e ) {
-        		fail("reservation was not hex. Was it an error? reservation: " + benderReservation);
-        }
+        assertTrue("reservation was not a confirmation code. Was it an error? reservation: " + benderReservation,
+        		benderReservation.matches("[0-9A-Z]{16}"));
       
         //check that the timed out requests return seats to the allocator.
-        verify(spyAllocator, timeout(4000)).returnSeat(103);
-        verify(spyAllocator, timeout(4000)).returnSeat(302);
-        verify(spyAllocator, timeout(4000)).returnSeat(303);
-        verify(spyAllocator, timeout(4000)).returnSeat(304);
+        verify(spyAllocator, timeout(4000)).returnSeats(intSetGenerator(seat(1, 3)));
+        verify(spyAllocator, timeout(4000)).returnSeats(intSetGenerator(seat(3, 2), seat(3, 3), seat(3, 4)));
         
         SeatHold amyTriesAgain = ts.findAndHoldSeats(3, "awong79@marslink.web");
-        assertTrue(intSetGenerator(102, 103, 104).equals(amyTriesAgain.getSeats()));
+        assertTrue(intSetGenerator(seat(1, 2), seat(1, 3), seat(1, 4)).equals(amyTriesAgain.getSeats()));
         
         System.out.println("testFrontAndCenterAllocation done!");
     }
 	
 	
+	/**
+	 * Holds should go back to the allocator within one tick of their TTL, and a shared wheel outlives the services using it
+	 */
 	@Test
-    public void frontAndCenterAllocationRandomized() {
-		System.out.println("frontAndCenterAllocationRandomized");
+	public void testHoldExpiryWheel() throws Exception {
+		try (HoldExpiryWheel wheel = new HoldExpiryWheel(50, 64)) {
+			TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(3, 5), 1, wheel);
+			
+			long start = System.nanoTime();
+			ts.findAndHoldSeats(5, "bender@ilovebender.com");
+			assertEquals(10, ts.numSeatsAvailable());
+			while (ts.numSeatsAvailable() != 15) {
+				assertTrue("hold was not expired", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+				Thread.sleep(10);
+			}
+			assertTrue("hold expired early", System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+			ts.close();
+			
+			ConcurrentLinkedQueue<RuntimeException> failures = new ConcurrentLinkedQueue<RuntimeException>();
+			wheel.setFailureHandler(failures::add);
+			wheel.schedule(() -> { throw new IllegalStateException("bad task"); }, 50);
+			CountDownLatch stillTicking = new CountDownLatch(1);
+			wheel.schedule(stillTicking::countDown, 100);
+			assertTrue(stillTicking.await(2, TimeUnit.SECONDS));
+			assertEquals(1, wheel.failedTasks());
+			assertEquals("bad task", failures.peek().getMessage());
+		}
+		
+		//tasks the pool turns away still run, and the wheel keeps ticking
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		pool.shutdown();
+		try (HoldExpiryWheel wheel = new HoldExpiryWheel(50, 64, pool)) {
+			CountDownLatch ran = new CountDownLatch(2);
+			wheel.schedule(ran::countDown, 50);
+			wheel.schedule(ran::countDown, 200);
+			assertTrue(ran.await(2, TimeUnit.SECONDS));
+			assertEquals(0, wheel.failedTasks());
+		}
+		System.out.println("testHoldExpiryWheel done!");
+	}
+	
+	@Test
+	public void testVirtualClock() {
+		VirtualClock clock = new VirtualClock(0);
+		try (HoldExpiryWheel wheel = HoldExpiryWheel.manual(clock, 100, 64);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(3, 5), 60, wheel)) {
+			SeatHold kept = ts.findAndHoldSeats(5, "fry@planetexpress.com");
+			SeatHold lost = ts.findAndHoldSeats(5, "bender@ilovebender.com");
+			assertEquals(60000, lost.getExpirationMillis());
 
-		FrontAndCenterSeatAllocator allocator = new FrontAndCenterSeatAllocator(10,24); 
-		FrontAndCenterSeatAllocator spyAllocator = spy(allocator);
-    	
-    		TicketService ts = new TicketServiceImpl(spyAllocator, 6);
-    		
-    		System.out.println("Starting Seats: " + ts.numSeatsAvailable());
-    		
-    		ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
-    		ArrayList<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
-
-    		Random rand = new Random();
-    		
-    		AtomicInteger requestCount = new AtomicInteger();
-    		ConcurrentHashMap<Integer,Integer> reservationHistory = new ConcurrentHashMap<Integer,Integer>();
-    		
-    		Runnable task = () -> {
-    			int value = 1 + rand.nextInt(7);
-    			
-    			SeatHold seatHold = ts.findAndHoldSeats(value, "WeAllHaveTheSameEmail@whatever.com");
-    			
-    			try {
-    				Thread.sleep(500l + rand.nextInt(2000));
-    			} catch (Exception e){}
-    			
-    			if(rand.nextDouble() < 0.8) {
-    				String confirmation = ts.reserveSeats(seatHold.getSeatHoldId(), seatHold.getEmail());
-    				if(confirmation == TicketService.SEAT_HOLD_ID_EXPIRED || confirmation == TicketService.SEAT_HOLD_ID_NOT_FOUND)
-    					System.err.println("Could not reserve seat. That's not expected...");
-    				
-    				Integer id = requestCount.incrementAndGet();
-    				seatHold.getSeats().forEach(seat -> reservationHistory.put(seat, id));
-    				
-    				int numSeatsAvailable = ts.numSeatsAvailable();
-    				if(id % 6 == 0 && numSeatsAvailable > 24) System.out.println("Remaining Seats: " + ts.numSeatsAvailable());
-    				else if (ts.numSeatsAvailable() <= 24) {
-    					futures.forEach(future -> future.cancel(false));
-    					spyAllocator.noteDoneForMocking();
-    				}
-    			}
-    			
-    		};
-
-    		for (int i = 1; i <= 6; i++){
-	    		int initialDelay = i/2;
-	    		int period = i;
-	    		futures.add(executor.scheduleAtFixedRate(task, initialDelay, period, TimeUnit.SECONDS));
-    		}
-    		
-    		verify(spyAllocator, timeout(80000)).noteDoneForMocking();
-    		System.out.println("The order in which each seat was reserved (same number = same reservation). 0 indicates unreserved\n");
-    		for( int row = 0; row < 10; row++) {
-    			for (int column = 0; column < 24; column++) {
-    				int id = reservationHistory.getOrDefault((row + 1) * 100 + column + 1, 0);
-    				System.out.format("%3d ", id);
-    			}
-    			System.out.println();
-    		}
-    		System.out.println();
-    			
-    		System.out.println("frontAndCenterAllocationRandomized done!");
+			clock.advance(59000);
+			wheel.advance();
+			assertEquals(5, ts.numSeatsAvailable());
+			assertTrue(ts.reserveSeats(kept.getSeatHoldId(), kept.getEmail()).matches("[0-9A-Z]{16}"));
+
+			//an hour goes by in no time at all
+			clock.advance(TimeUnit.HOURS.toMillis(1));
+			assertEquals(TicketService.SEAT_HOLD_ID_EXPIRED, ts.reserveSeats(lost.getSeatHoldId(), lost.getEmail()));
+			wheel.advance();
+			assertEquals(10, ts.numSeatsAvailable());
+			assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(lost.getSeatHoldId(), lost.getEmail()));
+		}
+		System.out.println("testVirtualClock done!");
+	}
+
+	@Test
+	public void testCustomerHolds() {
+		VirtualClock clock = new VirtualClock(0);
+		BitmapFrontAndCenterSeatAllocator allocator = spy(new BitmapFrontAndCenterSeatAllocator(4, 5));
+		try (HoldExpiryWheel wheel = HoldExpiryWheel.manual(clock, 100, 64);
+				TicketServiceImpl ts = new TicketServiceImpl(allocator, 60, wheel)) {
+			TicketServiceMetrics metrics = new TicketServiceMetrics();
+			ts.setMetrics(metrics);
+			//holds made before the quota are indexed and counted when it is set, the ones with a key only once
+			SeatHold keyed = ts.findAndHoldSeats(2, "fry@planetexpress.com", false, "purchase-0");
+			SeatHold unkeyed = ts.findAndHoldSeats(2, "fry@planetexpress.com");
+			ts.setCustomerQuota(2, 6);
+			assertEquals(new HashSet<SeatHold>(Arrays.asList(keyed, unkeyed)), new HashSet<SeatHold>(ts.getSeatHolds("fry@planetexpress.com")));
+			assertNull(ts.findAndHoldSeats(2, "fry@planetexpress.com"));
+
+			//a retry with the same key gets the same hold back without looking for seats again
+			SeatHold first = ts.findAndHoldSeats(3, "leela@planetexpress.com", false, "purchase-1");
+			assertSame(first, ts.findAndHoldSeats(3, "leela@planetexpress.com", false, "purchase-1"));
+			verify(allocator, times(1)).getSeats(3);
+			assertEquals(1, metrics.holdsDeduplicated());
+
+			//over six seats, then over two holds, without asking the allocator
+			assertNull(ts.findAndHoldSeats(4, "leela@planetexpress.com"));
+			SeatHold second = ts.findAndHoldSeats(3, "leela@planetexpress.com");
+			assertNull(ts.findAndHoldSeats(1, "leela@planetexpress.com"));
+			verify(allocator, never()).getSeats(4);
+			verify(allocator, never()).getSeats(1);
+			assertEquals(3, metrics.holdsOverQuota());
+			assertNotNull(ts.findAndHoldSeats(2, "amy@wong.com"));
+			assertEquals(new HashSet<SeatHold>(Arrays.asList(first, second)), new HashSet<SeatHold>(ts.getSeatHolds("leela@planetexpress.com")));
+
+			//a hold that throws part way still finishes its attempt, so a retry with its key doesn't wait forever
+			doThrow(new IllegalStateException("allocator down")).when(allocator).getSeats(1);
+			try {
+				ts.findAndHoldSeats(1, "zoidberg@planetexpress.com", false, "purchase-2");
+				fail("the allocator threw");
+			} catch (IllegalStateException expected) {}
+			doCallRealMethod().when(allocator).getSeats(1);
+			assertNotNull(ts.findAndHoldSeats(1, "zoidberg@planetexpress.com", false, "purchase-2"));
+			//nobody to count a hold without an email against
+			assertNotNull(ts.findAndHoldSeats(1, null));
+			assertTrue(ts.getSeatHolds(null).isEmpty());
+
+			//reserving a hold frees its quota, and the key with it
+			ts.reserveSeats(first.getSeatHoldId(), first.getEmail());
+			assertEquals(Arrays.asList(second), ts.getSeatHolds("leela@planetexpress.com"));
+			SeatHold third = ts.findAndHoldSeats(3, "leela@planetexpress.com", false, "purchase-1");
+			assertNotSame(first, third);
+
+			//so does expiring
+			clock.advance(TimeUnit.MINUTES.toMillis(2));
+			wheel.advance();
+			assertTrue(ts.getSeatHolds("leela@planetexpress.com").isEmpty());
+			assertNotNull(ts.findAndHoldSeats(6, "leela@planetexpress.com", true, null));
+		}
+		System.out.println("testCustomerHolds done!");
+	}
+
+	@Test
+	public void testSeatChangeFeed() {
+		VirtualClock clock = new VirtualClock(0);
+		try (HoldExpiryWheel wheel = HoldExpiryWheel.manual(clock, 100, 64);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(3, 5), 60, wheel)) {
+			SeatChangeFeed feed = new SeatChangeFeed(8);
+			ts.setChangeFeed(feed);
+			SeatChangeFeed.Subscriber fast = feed.subscribe();
+			SeatChangeFeed.Subscriber slow = feed.subscribe();
+			ArrayList<String> seen = new ArrayList<String>();
+			SeatChangeFeed.Listener listener = (sequence, seatId, state) -> seen.add(sequence + ":" + SeatId.row(seatId) + "-" + SeatId.seat(seatId) + ":" + state);
+
+			SeatHold hermes = ts.findAndHoldSeats(2, "hermes@planetexpress.com");
+			assertEquals(2, fast.poll(listener, 10));
+			assertEquals(Arrays.asList("1:1-2:HELD", "2:1-3:HELD"), seen);
+			assertEquals(0, fast.poll(listener, 10));
+
+			ts.reserveSeats(hermes.getSeatHoldId(), hermes.getEmail());
+			SeatHold scruffy = ts.findAndHoldSeats(3, "scruffy@planetexpress.com");
+			assertEquals(1, fast.poll(listener, 1));
+			assertEquals(4, fast.poll(listener, 10));
+			assertEquals("7:2-4:HELD", seen.get(seen.size() - 1));
+			clock.advance(TimeUnit.MINUTES.toMillis(2));
+			wheel.advance();
+			assertEquals(3, fast.poll(listener, 10));
+			assertEquals("10:2-4:FREE", seen.get(seen.size() - 1));
+			assertEquals(10, feed.sequence());
+
+			//the slow subscriber was lapped, it resyncs from the seat map and carries on
+			assertEquals(SeatChangeFeed.OVERFLOW, slow.poll(listener, 10));
+			assertEquals(11, slow.resync());
+			SeatMapSnapshot snapshot = ts.seatMap();
+			assertEquals(2, snapshot.count(SeatMapSnapshot.State.RESERVED));
+			assertEquals(0, snapshot.count(SeatMapSnapshot.State.HELD));
+			assertNotNull(scruffy);
+			ts.findAndHoldSeats(1, "scruffy@planetexpress.com");
+			assertEquals(1, slow.poll(listener, 10));
+			assertEquals(1, fast.poll(listener, 10));
+		}
+		System.out.println("testSeatChangeFeed done!");
+	}
+
+	@Test
+	public void testOnSaleSimulation() throws Exception {
+		List<OnSaleSimulation.Arrival> traffic = OnSaleSimulation.synthetic(7, 600, TimeUnit.HOURS.toMillis(2), 6, 0.7, TimeUnit.MINUTES.toMillis(12));
+		OnSaleSimulation simulation = new OnSaleSimulation(traffic, 600);
+
+		OnSaleSimulation.Result first = simulation.run("bitmap", new BitmapFrontAndCenterSeatAllocator(20, 40));
+		System.out.println(first);
+		assertEquals(600, first.holds + first.holdsFailed);
+		assertTrue(first.holds > 0 && first.reservations > 0 && first.reservationsLate > 0);
+		assertTrue(first.utilization() > 0 && first.utilization() <= 1);
+		assertTrue(first.virtualMillis >= TimeUnit.HOURS.toMillis(2));
+
+		//the same traffic always plays out the same way
+		OnSaleSimulation.Result second = simulation.run("bitmap", new BitmapFrontAndCenterSeatAllocator(20, 40));
+		assertEquals(first.holdsFailed, second.holdsFailed);
+		assertEquals(first.reservations, second.reservations);
+		assertEquals(first.seatsSold, second.seatsSold);
+
+		//nobody reserves after their hold has run out, so seats only stay sold if they were reserved in time
+		List<OnSaleSimulation.Arrival> recorded = OnSaleSimulation.read(new java.io.StringReader(
+				"# at, email, seats, think, decision\n0,fry@planetexpress.com,4,1000,reserve\n500,leela@planetexpress.com,2,0,abandon\n"
+				+ "1000,bender@ilovebender.com,3,700000,reserve\n"));
+		OnSaleSimulation.Result replayed = new OnSaleSimulation(recorded, 600).run("inOrder", new InOrderSeatAllocator(3, 5));
+		assertEquals(3, replayed.holds);
+		assertEquals(1, replayed.reservations);
+		assertEquals(1, replayed.reservationsLate);
+		assertEquals(4, replayed.seatsSold);
+		System.out.println("testOnSaleSimulation done!");
+	}
+
+	@Test
+	public void testTicketServiceRegistry() throws Exception {
+		AtomicInteger created = new AtomicInteger();
+		
+		try (TicketServiceRegistry registry = new TicketServiceRegistry(eventId -> {
+				created.incrementAndGet();
+				return new BitmapFrontAndCenterSeatAllocator(3, 5);
+			}, 60, 200)) {
+			
+			assertFalse(registry.isLoaded("futurama-live"));
+			TicketService futurama = registry.get("futurama-live");
+			assertSame(futurama, registry.get("futurama-live"));
+			assertEquals(1, created.get());
+			
+			TicketService simpsons = registry.get("simpsons-on-ice");
+			assertNotNull(simpsons.findAndHoldSeats(5, "bender@ilovebender.com"));
+			assertEquals(15, futurama.numSeatsAvailable());
+			assertEquals(2, registry.size());
+			
+			Thread.sleep(300);
+			registry.evictIdle();
+			//the held seats keep simpsons-on-ice in memory
+			assertFalse(registry.isLoaded("futurama-live"));
+			assertTrue(registry.isLoaded("simpsons-on-ice"));
+			
+			assertNotSame(futurama, registry.get("futurama-live"));
+			assertEquals(3, created.get());
+			//the evicted service can't sell seats the new one has too
+			try {
+				futurama.findAndHoldSeats(1, "fry@planetexpress.com");
+				fail("evicted service still holding seats");
+			} catch(IllegalStateException expected) {}
+		}
+		
+		//with nowhere to save them, reservations keep an event in memory
+		try (TicketServiceRegistry registry = new TicketServiceRegistry(eventId -> new BitmapFrontAndCenterSeatAllocator(3, 5), 60, 200)) {
+			TicketServiceImpl futurama = registry.get("futurama-live");
+			SeatHold hold = futurama.findAndHoldSeats(2, "fry@planetexpress.com");
+			futurama.reserveSeats(hold.getSeatHoldId(), hold.getEmail());
+			registry.get("simpsons-on-ice");
+			Thread.sleep(300);
+			registry.evictIdle();
+			assertTrue(registry.isLoaded("futurama-live"));
+			assertFalse(registry.isLoaded("simpsons-on-ice"));
+			assertEquals(13, registry.get("futurama-live").numSeatsAvailable());
+		}
+		
+		//journaled reservations are evicted with their event and reloaded from the journal
+		Path directory = Files.createTempDirectory("seat-journals");
+		try (TicketServiceRegistry registry = new TicketServiceRegistry(eventId -> new BitmapFrontAndCenterSeatAllocator(3, 5), 60, 200,
+				eventId -> SeatJournal.open(directory.resolve(eventId), false, 0))) {
+			TicketServiceImpl futurama = registry.get("futurama-live");
+			SeatHold hold = futurama.findAndHoldSeats(2, "fry@planetexpress.com");
+			String code = futurama.reserveSeats(hold.getSeatHoldId(), hold.getEmail());
+			Thread.sleep(300);
+			registry.evictIdle();
+			assertFalse(registry.isLoaded("futurama-live"));
+			
+			TicketServiceImpl reloaded = registry.get("futurama-live");
+			assertNotSame(futurama, reloaded);
+			assertEquals(13, reloaded.numSeatsAvailable());
+			assertEquals(hold.getSeats(), reloaded.getReservation(code).getSeats());
+			//the reserved seats are not handed out again
+			int held = 0;
+			for (SeatHold next; (next = reloaded.findAndHoldSeats(1, "bender@ilovebender.com")) != null; held++) {
+				for (int seat : next.getSeats()) assertFalse(hold.getSeats().contains(seat));
+			}
+			assertEquals(13, held);
+		}
+		System.out.println("testTicketServiceRegistry done!");
+	}
+	
+	@Test
+	public void testJournalRecovery() throws Exception {
+		Path directory = Files.createTempDirectory("seat-journal");
+		SeatHold kept, reserved, afterSnapshot;
+		String reservedCode, afterSnapshotCode;
+		
+		try (SeatJournal journal = SeatJournal.open(directory, true, 0);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(5, 10), 60, journal)) {
+			kept = ts.findAndHoldSeats(3, "fry@planetexpress.com");
+			reserved = ts.findAndHoldSeats(2, "leela@planetexpress.com");
+			reservedCode = ts.reserveSeats(reserved.getSeatHoldId(), reserved.getEmail());
+			ts.snapshot();
+			afterSnapshot = ts.findAndHoldSeats(4, "bender@ilovebender.com");
+			afterSnapshotCode = ts.reserveSeats(afterSnapshot.getSeatHoldId(), afterSnapshot.getEmail());
+			assertEquals(41, ts.numSeatsAvailable());
+		}
+		//a crash part way through a write leaves a torn record at the end of the journal
+		try (Stream<Path> files = Files.list(directory)) {
+			Path log = files.filter(file -> file.toString().endsWith(".log")).sorted().reduce((first, second) -> second).get();
+			Files.write(log, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+		}
+		
+		try (SeatJournal journal = SeatJournal.open(directory, true, 0);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(5, 10), 60, journal)) {
+			assertEquals(41, ts.numSeatsAvailable());
+			assertEquals(1, ts.numSeatHolds());
+			//the reservations survived, so their holds can't be reserved again
+			assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(reserved.getSeatHoldId(), reserved.getEmail()));
+			assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(afterSnapshot.getSeatHoldId(), afterSnapshot.getEmail()));
+			//and can still be looked up by their codes, from the snapshot and from the journal
+			assertEquals(reserved.getSeats(), ts.getReservation(reservedCode).getSeats());
+			assertEquals(afterSnapshot.getSeats(), ts.getReservation(afterSnapshotCode).getSeats());
+			assertEquals(afterSnapshot.getSeatHoldId(), ts.getReservations("bender@ilovebender.com").get(0).getSeatHoldId());
+			
+			SeatHold newHold = ts.findAndHoldSeats(1, "zoidberg@planetexpress.com");
+			assertTrue(newHold.getSeatHoldId() > afterSnapshot.getSeatHoldId());
+			assertFalse(kept.getSeats().contains(newHold.getSeats().get(0)));
+			assertEquals(kept.getSeats(), ts.getReservation(ts.reserveSeats(kept.getSeatHoldId(), kept.getEmail())).getSeats());
+			assertEquals(1, ts.numSeatHolds());
+		}
+		System.out.println("testJournalRecovery done!");
+	}
+	
+	@Test
+	public void testConfirmationCodes() throws Exception {
+		try (TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(20, 30), 60)) {
+			Set<String> codes = ConcurrentHashMap.newKeySet();
+			ExecutorService threads = Executors.newFixedThreadPool(4);
+			for (int i = 0; i < 200; i++) {
+				String email = "customer" + (i % 10) + "@momcorp.com";
+				threads.execute(() -> {
+					SeatHold seatHold = ts.findAndHoldSeats(2, email);
+					codes.add(ts.reserveSeats(seatHold.getSeatHoldId(), seatHold.getEmail()));
+				});
+			}
+			threads.shutdown();
+			assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+			
+			assertEquals(200, codes.size());
+			for (String code : codes) {
+				assertTrue(code, code.matches("[0-9A-HJKMNP-TV-Z]{16}"));
+				assertEquals(code, ts.getReservation(code).getConfirmationCode());
+			}
+			assertNull(ts.getReservation("0000000000000000"));
+			
+			//emails are compared by value, not by reference
+			String email = new String("customer3@momcorp.com");
+			List<Reservation> reservations = ts.getReservations(email);
+			assertEquals(20, reservations.size());
+			for (Reservation reservation : reservations) assertTrue(codes.contains(reservation.getConfirmationCode()));
+			SeatHold seatHold = ts.findAndHoldSeats(1, "customer3@momcorp.com");
+			assertNotEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeats(seatHold.getSeatHoldId(), email));
+		}
+		System.out.println("testConfirmationCodes done!");
+	}
+	
+	@Test
+	public void testCancelReservation() throws Exception {
+		Path directory = Files.createTempDirectory("seat-journal");
+		String partial, comps;
+		SeatHold kept;
+		
+		try (SeatJournal journal = SeatJournal.open(directory, true, 0);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(4, 6), 60, journal)) {
+			SeatHold amy = ts.findAndHoldSeats(6, "amy@marslink.web");
+			String cancelled = ts.reserveSeats(amy.getSeatHoldId(), amy.getEmail());
+			kept = ts.findAndHoldSeats(4, "amy@marslink.web");
+			partial = ts.reserveSeats(kept.getSeatHoldId(), kept.getEmail());
+			assertEquals(14, ts.numSeatsAvailable());
+			
+			assertTrue(ts.cancelReservation(cancelled));
+			assertFalse(ts.cancelReservation(cancelled));
+			assertNull(ts.getReservation(cancelled));
+			assertEquals(1, ts.getReservations("amy@marslink.web").size());
+			//the front row is back and is the best block again
+			assertEquals(amy.getSeats(), ts.findAndHoldSeats(6, "leela@planetexpress.com").getSeats());
+			
+			Set<Integer> refunded = intSetGenerator(kept.getSeats().get(0), kept.getSeats().get(1));
+			assertFalse(ts.releaseSeats(partial, intSetGenerator(kept.getSeats().get(0), amy.getSeats().get(0))));
+			assertTrue(ts.releaseSeats(partial, refunded));
+			assertFalse(ts.releaseSeats(partial, refunded));
+			assertEquals(2, ts.getReservation(partial).getSeats().size());
+			assertEquals(16, ts.numSeatsAvailable());
+			
+			ArrayList<String> codes = new ArrayList<String>();
+			for (int i = 0; i < 16; i++) {
+				SeatHold comp = ts.findAndHoldSeats(1, "comps@venue.com");
+				codes.add(ts.reserveSeats(comp.getSeatHoldId(), comp.getEmail()));
+			}
+			comps = codes.get(0);
+			codes.remove(0);
+			codes.add("no such code");
+			assertEquals(0, ts.numSeatsAvailable());
+			assertEquals(15, ts.cancelReservations(codes));
+			assertEquals(15, ts.numSeatsAvailable());
+			assertEquals(SeatMapSnapshot.State.FREE, ts.seatMap().state(refunded.iterator().next()));
+		}
+		
+		try (SeatJournal journal = SeatJournal.open(directory, true, 0);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(4, 6), 60, journal)) {
+			//leela's hold and the two reservations left
+			assertEquals(15, ts.numSeatsAvailable());
+			assertEquals(2, ts.getReservation(partial).getSeats().size());
+			assertTrue(kept.getSeats().containsAll(ts.getReservation(partial).getSeats()));
+			assertEquals(1, ts.getReservations("comps@venue.com").size());
+			assertTrue(ts.cancelReservation(comps));
+			assertEquals(16, ts.numSeatsAvailable());
+		}
+		System.out.println("testCancelReservation done!");
+	}
+	
+	@Test
+	public void testJournalFailure() throws Exception {
+		Path directory = Files.createTempDirectory("seat-journal");
+		try (SeatJournal journal = SeatJournal.open(directory, true, 0);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(4, 6), 60, journal)) {
+			SeatHold sold = ts.findAndHoldSeats(3, "hermes@planetexpress.com");
+			String code = ts.reserveSeats(sold.getSeatHoldId(), sold.getEmail());
+			SeatHold held = ts.findAndHoldSeats(4, "hermes@planetexpress.com");
+			assertEquals(17, ts.numSeatsAvailable());
+			journal.close();
+			
+			//nothing can be journaled, so the hold stays a hold rather than a reservation nobody recorded
+			try {
+				ts.reserveSeats(held.getSeatHoldId(), held.getEmail());
+				fail("reserved without a journal");
+			} catch (UncheckedIOException expected) {
+			}
+			assertEquals(1, ts.numSeatHolds());
+			assertEquals(1, ts.getReservations("hermes@planetexpress.com").size());
+			assertEquals(17, ts.numSeatsAvailable());
+			assertEquals(SeatMapSnapshot.State.HELD, ts.seatMap().state(held.getSeats().get(0)));
+			
+			//and a cancellation nobody recorded leaves the reservation in place, its seats neither lost nor resold
+			try {
+				ts.cancelReservation(code);
+				fail("cancelled without a journal");
+			} catch (UncheckedIOException expected) {
+			}
+			try {
+				ts.cancelReservations(Arrays.asList("no such code", code));
+				fail("cancelled without a journal");
+			} catch (UncheckedIOException expected) {
+			}
+			assertEquals(sold.getSeats(), ts.getReservation(code).getSeats());
+			assertEquals(17, ts.numSeatsAvailable());
+			assertEquals(SeatMapSnapshot.State.RESERVED, ts.seatMap().state(sold.getSeats().get(0)));
+		}
+		System.out.println("testJournalFailure done!");
+	}
+	
+	@Test
+	public void testReserveSeatsAsync() throws Exception {
+		try (TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(10, 24), 60)) {
+			ArrayList<CompletableFuture<SeatHold>> holds = new ArrayList<CompletableFuture<SeatHold>>();
+			for (int i = 0; i < 50; i++) holds.add(ts.findAndHoldSeatsAsync(4, "hermes@planetexpress.com"));
+			
+			HashSet<Integer> heldSeats = new HashSet<Integer>();
+			ArrayList<CompletableFuture<String>> reservations = new ArrayList<CompletableFuture<String>>();
+			for (CompletableFuture<SeatHold> hold : holds) {
+				SeatHold seatHold = hold.get(5, TimeUnit.SECONDS);
+				assertEquals(4, seatHold.getSeats().size());
+				assertTrue(heldSeats.addAll(seatHold.getSeats()));
+				reservations.add(ts.reserveSeatsAsync(seatHold.getSeatHoldId(), seatHold.getEmail()));
+			}
+			assertEquals(40, ts.numSeatsAvailable());
+			
+			HashSet<String> codes = new HashSet<String>();
+			for (CompletableFuture<String> reservation : reservations) codes.add(reservation.get(5, TimeUnit.SECONDS));
+			assertEquals(50, codes.size());
+			assertEquals(0, ts.numSeatHolds());
+			
+			SeatHold first = holds.get(0).get();
+			assertEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, ts.reserveSeatsAsync(first.getSeatHoldId(), first.getEmail()).get(5, TimeUnit.SECONDS));
+			assertNull(ts.findAndHoldSeatsAsync(25, "hermes@planetexpress.com").get(5, TimeUnit.SECONDS));
+		}
+		
+		//a command that throws fails on its own, the ones around it still complete
+		try (TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(10, 24) {
+				@Override
+				public synchronized SeatSet getSeats(int numSeats) {
+					if (numSeats == 13) throw new IllegalStateException("unlucky");
+					return super.getSeats(numSeats);
+				}
+			}, 60)) {
+			ts.setCustomerQuota(1, 13);
+			CompletableFuture<SeatHold> before = ts.findAndHoldSeatsAsync(2, "hermes@planetexpress.com");
+			CompletableFuture<SeatHold> unlucky = ts.findAndHoldSeatsAsync(13, "scruffy@planetexpress.com");
+			CompletableFuture<SeatHold> after = ts.findAndHoldSeatsAsync(3, "zoidberg@planetexpress.com");
+			
+			assertEquals(2, before.get(5, TimeUnit.SECONDS).getSeats().size());
+			try {
+				unlucky.get(5, TimeUnit.SECONDS);
+				fail("the hold should have failed");
+			} catch (ExecutionException expected) {
+				assertTrue(expected.getCause() instanceof IllegalStateException);
+			}
+			try {
+				assertEquals(3, after.get(5, TimeUnit.SECONDS).getSeats().size());
+			} catch (ExecutionException sameBatch) {
+				//it was after the unlucky hold in its batch and never ran
+				assertEquals("unlucky", sameBatch.getCause().getMessage());
+			}
+			//scruffy's failed hold doesn't count against his quota
+			assertEquals(1, ts.findAndHoldSeatsAsync(1, "scruffy@planetexpress.com").get(5, TimeUnit.SECONDS).getSeats().size());
+		}
+		System.out.println("testReserveSeatsAsync done!");
+	}
+
+	@Test
+	public void testWaitingRoom() throws Exception {
+		try (TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(10, 24), 60)) {
+			//holds finishing only let the next request in when we say so
+			ConcurrentLinkedQueue<Runnable> finished = new ConcurrentLinkedQueue<Runnable>();
+			WaitingRoom room = new WaitingRoom(ts, 2, 5, 60000, finished::add);
+
+			ArrayList<CompletableFuture<SeatHold>> holds = new ArrayList<CompletableFuture<SeatHold>>();
+			for (int i = 0; i < 10; i++) holds.add(room.findAndHoldSeats(4, "bender@planetexpress.com"));
+			assertEquals(2, room.inFlight());
+			assertEquals(5, room.waiting());
+			assertEquals(3, room.shed());
+			for (int i = 7; i < 10; i++) {
+				try {
+					holds.get(i).getNow(null);
+					fail("The waiting room was full");
+				} catch (CompletionException e) {
+					assertTrue(e.getCause() instanceof RejectedExecutionException);
+				}
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (room.inFlight() > 0 && System.currentTimeMillis() < deadline) {
+				Runnable next = finished.poll();
+				if (next == null) Thread.sleep(1);
+				else next.run();
+			}
+			assertEquals(0, room.waiting());
+			assertEquals(7, room.admitted());
+			//let in first come first served
+			int lastId = -1;
+			for (int i = 0; i < 7; i++) {
+				SeatHold seatHold = holds.get(i).get(5, TimeUnit.SECONDS);
+				assertEquals(4, seatHold.getSeats().size());
+				assertTrue(seatHold.getSeatHoldId() > lastId);
+				lastId = seatHold.getSeatHoldId();
+			}
+			assertEquals(240 - 28, ts.numSeatsAvailable());
+			//more seats than are left don't queue at all
+			assertNull(room.findAndHoldSeats(241, "bender@planetexpress.com").getNow(null));
+			assertEquals(0, room.inFlight());
+
+			//reservations take a slot too, and are let in ahead of the holds waiting
+			room.findAndHoldSeats(4, "bender@planetexpress.com");
+			room.findAndHoldSeats(4, "bender@planetexpress.com");
+			room.findAndHoldSeats(4, "bender@planetexpress.com");
+			CompletableFuture<String> reserved = room.reserveSeats(holds.get(0).get().getSeatHoldId(), "bender@planetexpress.com");
+			assertEquals(2, room.inFlight());
+			assertEquals(1, room.waiting());
+			assertEquals(1, room.reserving());
+			Runnable next;
+			while ((next = finished.poll()) == null) Thread.sleep(1);
+			next.run();
+			assertEquals(0, room.reserving());
+			assertEquals(1, room.waiting());
+			while (room.inFlight() > 0 && System.currentTimeMillis() < deadline + 5000) {
+				next = finished.poll();
+				if (next == null) Thread.sleep(1);
+				else next.run();
+			}
+			assertEquals(16, reserved.get(5, TimeUnit.SECONDS).length());
+			assertEquals(0, room.waiting());
+			
+			//an executor that turns the callbacks away fails the requests but still frees their slots
+			WaitingRoom shutDown = new WaitingRoom(ts, 1, 5, 60000, runnable -> {
+				throw new RejectedExecutionException("shut down");
+			});
+			CompletableFuture<SeatHold> first = shutDown.findAndHoldSeats(1, "bender@planetexpress.com");
+			CompletableFuture<SeatHold> second = shutDown.findAndHoldSeats(1, "bender@planetexpress.com");
+			for (CompletableFuture<SeatHold> hold : Arrays.asList(first, second)) {
+				try {
+					hold.get(5, TimeUnit.SECONDS);
+					fail("The callback was never run");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof RejectedExecutionException);
+				}
+			}
+			//the slot is freed just after the caller hears
+			long freed = System.currentTimeMillis() + 5000;
+			while (shutDown.inFlight() > 0 && System.currentTimeMillis() < freed) Thread.sleep(1);
+			assertEquals(0, shutDown.inFlight());
+		}
+		System.out.println("testWaitingRoom done!");
+	}
+	
+	@Test
+	public void testSeatMapSnapshot() {
+		try (TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(3, 5), 60)) {
+			SeatMapSnapshot empty = ts.seatMap();
+			assertEquals(15, empty.count(SeatMapSnapshot.State.FREE));
+			assertSame(empty, ts.seatMap());
+			//a client starts from the whole map
+			SeatMapSnapshot client = SeatMapSnapshot.fromByteBuffer(empty.toByteBuffer());
+			
+			SeatHold fry = ts.findAndHoldSeats(3, "fry@planetexpress.com");
+			SeatHold leela = ts.findAndHoldSeats(2, "leela@planetexpress.com");
+			ts.reserveSeats(fry.getSeatHoldId(), fry.getEmail());
+			SeatMapSnapshot current = ts.seatMap();
+			assertTrue(current.version() > empty.version());
+			for (int seat : fry.getSeats()) assertEquals(SeatMapSnapshot.State.RESERVED, current.state(seat));
+			for (int seat : leela.getSeats()) assertEquals(SeatMapSnapshot.State.HELD, current.state(seat));
+			assertEquals(10, current.count(SeatMapSnapshot.State.FREE));
+			//snapshots never change once taken
+			assertEquals(15, empty.count(SeatMapSnapshot.State.FREE));
+			
+			client = client.apply(current.deltaSince(client.version()));
+			assertEquals(current.version(), client.version());
+			for (int row = 1; row <= 3; row++) {
+				for (int seat = 1; seat <= 5; seat++) assertEquals(current.state(row, seat), client.state(row, seat));
+			}
+			//only the changed rows are sent
+			assertTrue(current.deltaSince(empty.version()).remaining() < current.toByteBuffer().remaining());
+			assertEquals(0, current.deltaSince(current.version()).getInt(1 + 8 + 8 + 2 + 2));
+		}
+		System.out.println("testSeatMapSnapshot done!");
+	}
+	
+	@Test
+	public void testMetrics() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 1000; micros++) histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		assertEquals(1000, histogram.count());
+		assertEquals(500_000, histogram.percentileNanos(50), 500_000 * 0.04);
+		assertEquals(990_000, histogram.percentileNanos(99), 990_000 * 0.04);
+		assertEquals(1_000_000, histogram.percentileNanos(100));
+		
+		try (HoldExpiryWheel wheel = new HoldExpiryWheel(10, 64);
+				TicketServiceImpl ts = new TicketServiceImpl(new BitmapFrontAndCenterSeatAllocator(3, 5), 1, wheel)) {
+			TicketServiceMetrics metrics = new TicketServiceMetrics();
+			ts.setMetrics(metrics);
+			
+			SeatHold kif = ts.findAndHoldSeats(3, "kif@doop.mil");
+			ts.findAndHoldSeats(2, "zapp@doop.mil");
+			assertNull(ts.findAndHoldSeats(6, "zapp@doop.mil"));
+			ts.reserveSeats(kif.getSeatHoldId(), kif.getEmail());
+			ts.reserveSeats(kif.getSeatHoldId(), kif.getEmail());
+			
+			assertEquals(2, metrics.holds());
+			assertEquals(1, metrics.holdsFailed());
+			assertEquals(1, metrics.reservations());
+			assertEquals(1, metrics.reservationsFailed());
+			assertEquals(3, metrics.getSeatsLatency().count());
+			assertEquals(2, metrics.findAndHoldSeatsLatency().count());
+			assertEquals(2, metrics.reserveSeatsLatency().count());
+			assertTrue(metrics.getSeatsLatency().percentileNanos(50) > 0);
+			//every call waits for the service's own lock, journal or not
+			assertEquals(5, metrics.lockWait().count());
+			
+			//zapp's hold expires after a second
+			long deadline = System.currentTimeMillis() + 5000;
+			while (metrics.expiries() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+			assertEquals(1, metrics.expiries());
+			assertEquals(1, metrics.expiryLatency().count());
+			assertEquals(5, ts.seatMap().longestFreeRun(2));
+		}
+		System.out.println("testMetrics done!");
+	}
+	
+	@Test
+	public void frontAndCenterAllocationRandomized() {
+		System.out.println("frontAndCenterAllocationRandomized");
+		
+		VirtualClock clock = new VirtualClock(0);
+		Random rand = new Random(42);
+		HashMap<Integer,Integer> reservationHistory = new HashMap<Integer,Integer>();
+		
+		try (HoldExpiryWheel wheel = HoldExpiryWheel.manual(clock, 100, 64);
+				TicketServiceImpl ts = new TicketServiceImpl(new FrontAndCenterSeatAllocator(10, 24), 6, wheel)) {
+			System.out.println("Starting Seats: " + ts.numSeatsAvailable());
+			
+			//six customers come back every 1 to 6 seconds, starting after 0 to 3, and take 0.5 to 2.5 seconds to decide
+			PriorityQueue<long[]> arrivals = new PriorityQueue<long[]>(Comparator.comparingLong(arrival -> arrival[0]));
+			for (int i = 1; i <= 6; i++) arrivals.add(new long[] {i / 2 * 1000L, i * 1000L});
+			PriorityQueue<SimpleEntry<Long,SeatHold>> decisions = new PriorityQueue<SimpleEntry<Long,SeatHold>>(Comparator.comparingLong(SimpleEntry::getKey));
+			int requestCount = 0;
+			
+			while (ts.numSeatsAvailable() > 24 && clock.millis() < TimeUnit.MINUTES.toMillis(10)) {
+				boolean arrival = decisions.isEmpty() || arrivals.peek()[0] < decisions.peek().getKey();
+				clock.advanceTo(arrival ? arrivals.peek()[0] : decisions.peek().getKey());
+				wheel.advance();
+				
+				if (arrival) {
+					long[] customer = arrivals.poll();
+					arrivals.add(new long[] {customer[0] + customer[1], customer[1]});
+					SeatHold seatHold = ts.findAndHoldSeats(1 + rand.nextInt(7), "WeAllHaveTheSameEmail@whatever.com");
+					//the rest let their holds expire
+					if (seatHold != null && rand.nextDouble() < 0.8) 
+						decisions.add(new SimpleEntry<Long,SeatHold>(clock.millis() + 500 + rand.nextInt(2000), seatHold));
+					continue;
+				}
+				
+				SeatHold seatHold = decisions.poll().getValue();
+				String confirmation = ts.reserveSeats(seatHold.getSeatHoldId(), seatHold.getEmail());
+				//everyone decides well inside the 6 second TTL
+				assertNotEquals(TicketService.SEAT_HOLD_ID_EXPIRED, confirmation);
+				assertNotEquals(TicketService.SEAT_HOLD_ID_NOT_FOUND, confirmation);
+				
+				Integer id = ++requestCount;
+				for (int seat : seatHold.getSeats()) assertNull(reservationHistory.put(seat, id));
+				if (id % 6 == 0) System.out.println("Remaining Seats: " + ts.numSeatsAvailable());
+			}
+			assertTrue(ts.numSeatsAvailable() <= 24);
+		}
+		
+		System.out.println("The order in which each seat was reserved (same number = same reservation). 0 indicates unreserved\n");
+		for (int row = 0; row < 10; row++) {
+			for (int column = 0; column < 24; column++) {
+				int id = reservationHistory.getOrDefault(seat(row + 1, column + 1), 0);
+				System.out.format("%3d ", id);
+			}
+			System.out.println();
+		}
+		System.out.println();
+		
+		System.out.println("frontAndCenterAllocationRandomized done!");
 	}    	
     
     